@@ -0,0 +1,185 @@
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.regions.DefaultAwsRegionProviderChain;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClientBuilder;
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.AmazonTextractAsync;
+import com.amazonaws.services.textract.AmazonTextractAsyncClientBuilder;
+import com.amazonaws.services.textract.AmazonTextractClientBuilder;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * Long-lived Amazon Textract, Amazon S3 (and Amazon SQS) clients, shared by all processors.
+ *
+ * The clients are thread-safe and expensive to create (credentials resolution, TLS setup, connection pool), so they
+ * are built once, lazily, and then reused for every page and every document.
+ *
+ * The default instance is configured from these (optional) envars:
+ * <ul>
+ * <li>AWS_MAX_CONNECTIONS: size of the connection pool of each client (default: 50)</li>
+ * <li>AWS_CONNECTION_TTL_MS: max lifetime of a pooled connection (default: 60000)</li>
+ * <li>AWS_SOCKET_TIMEOUT_MS: socket read timeout (default: 60000)</li>
+ * <li>TEXTRACT_ENDPOINT / S3_ENDPOINT / SQS_ENDPOINT: endpoint override, e.g. to point at a local stand-in; requests
+ * to it are signed for the region of the environment (e.g. AWS_REGION), or else for us-east-1</li>
+ * </ul>
+ *
+ * Amazon Textract calls go through the default {@link TextractRateLimiter}; those of the asynchronous client, used by
+ * {@link TextractOcrEngine}, go through it with {@link TextractRateLimiter#callAsync}.
+ */
+public class AwsClients {
+
+    // Signing region of an overridden endpoint, when the environment has none (e.g. a local stand-in)
+    private static final String DEFAULT_ENDPOINT_REGION = "us-east-1";
+
+    private static AwsClients defaultInstance;
+
+    private final Supplier<AmazonTextract> textractFactory;
+    private final Supplier<AmazonTextractAsync> textractAsyncFactory;
+    private final Supplier<AmazonS3> s3Factory;
+    private final Supplier<AmazonSQS> sqsFactory;
+
+    private AmazonTextract textract;
+    private AmazonTextractAsync textractAsync;
+    private AmazonS3 s3;
+    private AmazonSQS sqs;
+
+    /**
+     * Use the given clients, e.g. stand-ins in tests.
+     */
+    public AwsClients(AmazonTextract textract, AmazonS3 s3, AmazonSQS sqs) {
+        this(textract, null, s3, sqs);
+    }
+
+    public AwsClients(AmazonTextract textract, AmazonTextractAsync textractAsync, AmazonS3 s3, AmazonSQS sqs) {
+        this(() -> textract, () -> textractAsync, () -> s3, () -> sqs);
+    }
+
+    private AwsClients(Supplier<AmazonTextract> textractFactory, Supplier<AmazonTextractAsync> textractAsyncFactory,
+                       Supplier<AmazonS3> s3Factory, Supplier<AmazonSQS> sqsFactory) {
+        this.textractFactory = textractFactory;
+        this.textractAsyncFactory = textractAsyncFactory;
+        this.s3Factory = s3Factory;
+        this.sqsFactory = sqsFactory;
+    }
+
+    /**
+     * @return the process-wide instance, configured from the environment
+     */
+    public static synchronized AwsClients getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = fromEnvironment();
+        }
+        return defaultInstance;
+    }
+
+    public static AwsClients fromEnvironment() {
+        ClientConfiguration clientConfiguration = new ClientConfiguration()
+                .withMaxConnections(intFromEnv("AWS_MAX_CONNECTIONS", 50))
+                .withConnectionTTL(intFromEnv("AWS_CONNECTION_TTL_MS", 60000))
+                .withSocketTimeout(intFromEnv("AWS_SOCKET_TIMEOUT_MS", 60000))
+                .withTcpKeepAlive(true);
+
+        Optional<String> textractEndpoint = Optional.ofNullable(System.getenv("TEXTRACT_ENDPOINT"));
+        Optional<String> s3Endpoint = Optional.ofNullable(System.getenv("S3_ENDPOINT"));
+        Optional<String> sqsEndpoint = Optional.ofNullable(System.getenv("SQS_ENDPOINT"));
+
+        //Throttled calls are retried by the rate limiter (which slows down), not by the client
+        ClientConfiguration textractConfiguration = new ClientConfiguration(clientConfiguration)
+                .withRetryPolicy(new RetryPolicy(
+                        (request, exception, retriesAttempted) ->
+                                !RetryUtils.isThrottlingException(exception)
+                                        && PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION
+                                        .shouldRetry(request, exception, retriesAttempted),
+                        PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY,
+                        PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true));
+
+        return new AwsClients(
+                () -> {
+                    AmazonTextractClientBuilder builder = AmazonTextractClientBuilder.standard()
+                            .withClientConfiguration(textractConfiguration);
+                    textractEndpoint.ifPresent(endpoint -> builder.withEndpointConfiguration(endpointConfiguration(endpoint)));
+                    return TextractRateLimiter.getDefault().wrap(builder.build());
+                },
+                () -> {
+                    //Its requests wait in the queue of its executor (one thread per connection), not in threads
+                    AmazonTextractAsyncClientBuilder builder = AmazonTextractAsyncClientBuilder.standard()
+                            .withClientConfiguration(textractConfiguration);
+                    textractEndpoint.ifPresent(endpoint -> builder.withEndpointConfiguration(endpointConfiguration(endpoint)));
+                    return builder.build();
+                },
+                () -> {
+                    AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard()
+                            .withClientConfiguration(clientConfiguration);
+                    s3Endpoint.ifPresent(endpoint -> builder
+                            .withEndpointConfiguration(endpointConfiguration(endpoint))
+                            .withPathStyleAccessEnabled(true));
+                    return builder.build();
+                },
+                () -> {
+                    AmazonSQSClientBuilder builder = AmazonSQSClientBuilder.standard()
+                            .withClientConfiguration(clientConfiguration);
+                    sqsEndpoint.ifPresent(endpoint -> builder.withEndpointConfiguration(endpointConfiguration(endpoint)));
+                    return builder.build();
+                });
+    }
+
+    public synchronized AmazonTextract textract() {
+        if (textract == null) {
+            textract = textractFactory.get();
+        }
+        return textract;
+    }
+
+    /**
+     * @return the asynchronous Amazon Textract client; its calls are not rate limited by itself (see
+     * {@link TextractRateLimiter#callAsync})
+     */
+    public synchronized AmazonTextractAsync textractAsync() {
+        if (textractAsync == null) {
+            textractAsync = textractAsyncFactory.get();
+            if (textractAsync == null) {
+                throw new IllegalStateException("No asynchronous Amazon Textract client");
+            }
+        }
+        return textractAsync;
+    }
+
+    public synchronized AmazonS3 s3() {
+        if (s3 == null) {
+            s3 = s3Factory.get();
+        }
+        return s3;
+    }
+
+    public synchronized AmazonSQS sqs() {
+        if (sqs == null) {
+            sqs = sqsFactory.get();
+        }
+        return sqs;
+    }
+
+    // -------------------------------------------------------------------------
+
+    private static AwsClientBuilder.EndpointConfiguration endpointConfiguration(String endpoint) {
+        String region;
+        try {
+            region = new DefaultAwsRegionProviderChain().getRegion();
+        } catch (SdkClientException e) {
+            //No region configured
+            region = null;
+        }
+        return new AwsClientBuilder.EndpointConfiguration(endpoint, region != null ? region : DEFAULT_ENDPOINT_REGION);
+    }
+
+    private static int intFromEnv(String name, int defaultValue) {
+        return Optional.ofNullable(System.getenv(name)).map(Integer::parseInt).orElse(defaultValue);
+    }
+}
@@ -0,0 +1,340 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only journal of a batch run, so that a restarted run skips the files already done.
+ *
+ * For each input file, the journal records when its OCR is done (with the temporary output), when it is uploaded (with
+ * the content hash of the file and the response of tagtog), or when it failed. Every record is of a destination (e.g.
+ * the tagtog project folder): a run only sees the records of its own destination, so that uploading the same files
+ * elsewhere does them all again.
+ *
+ * On start, the journal is read once into memory; whether a file is done is then a map lookup plus a stat of the file,
+ * not a hash of its content: a file counts as done if it was uploaded and its size and modification time did not
+ * change since. Only when the modification time changed, but not the size, is the file hashed, to tell whether its
+ * content changed too.
+ *
+ * Writes are buffered and synced to disk (fsync) every syncEvery records, and at least every second; a crash loses at
+ * most those, which are then done again.
+ *
+ * The journal is enabled with the envar BATCH_JOURNAL (path of the journal file); BATCH_JOURNAL_SYNC_EVERY (default:
+ * 32) sets how often it is synced. Several destinations can share the journal file.
+ */
+public class BatchJournal implements Closeable {
+
+    private static final String OCR_DONE = "OCR_DONE";
+    private static final String UPLOADED = "UPLOADED";
+    private static final String FAILED = "FAILED";
+    private static final String NONE = "-";
+
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    private final String destination;
+    private final int syncEvery;
+
+    // Input path -> its last record, of this destination
+    private final Map<String, Record> records = new HashMap<>();
+
+    private final FileChannel channel;
+    private final Writer writer;
+    private int unsyncedRecords = 0;
+
+    private final ScheduledExecutorService syncer;
+
+    /**
+     * @param destination where the files are uploaded to (e.g. the tagtog project folder): records of other
+     *                    destinations in the journal are ignored
+     */
+    public BatchJournal(Path file, String destination, int syncEvery) throws IOException {
+        this.destination = destination;
+        this.syncEvery = syncEvery;
+
+        if (Files.exists(file)) {
+            int ignoredLines = 0;
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    Record record = Record.parse(line);
+                    if (record == null) {
+                        //E.g. the last line, cut short by a crash
+                        ignoredLines++;
+                    } else if (record.destination.equals(destination)) {
+                        records.put(record.path, record);
+                    }
+                }
+            }
+            System.out.println("Journal " + file + ": " + records.size() + " files of " + destination
+                    + (ignoredLines > 0 ? " (ignored " + ignoredLines + " unreadable lines)" : ""));
+        }
+
+        //End a line cut short by a crash, so that it does not run into the next record (a channel cannot both read and
+        //append)
+        boolean endLine = false;
+        if (Files.exists(file)) {
+            try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (reader.size() > 0) {
+                    ByteBuffer lastByte = ByteBuffer.allocate(1);
+                    reader.read(lastByte, reader.size() - 1);
+                    endLine = lastByte.get(0) != '\n';
+                }
+            }
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        if (endLine) {
+            channel.write(ByteBuffer.wrap(new byte[]{'\n'}));
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }, StandardCharsets.UTF_8));
+
+        this.syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "batch-journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(() -> {
+            try {
+                sync(false);
+            } catch (IOException e) {
+                System.out.println("Could not sync journal " + file + ": " + e.getMessage());
+            }
+        }, SYNC_INTERVAL_MILLIS, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the journal of the destination configured from the environment, or null if it is disabled
+     */
+    public static BatchJournal fromEnvironment(String destination) throws IOException {
+        Optional<String> file = Optional.ofNullable(System.getenv("BATCH_JOURNAL"));
+        int syncEvery = Optional.ofNullable(System.getenv("BATCH_JOURNAL_SYNC_EVERY")).map(Integer::parseInt).orElse(32);
+        return file.isPresent() ? new BatchJournal(Paths.get(file.get()), destination, syncEvery) : null;
+    }
+
+    /**
+     * @return whether the (unchanged) input file was already uploaded
+     */
+    public boolean isUploaded(Path input) throws IOException {
+        Record record = lastRecord(input);
+        if (record == null || !record.status.equals(UPLOADED)) {
+            return false;
+        }
+        String fingerprint = fingerprint(input);
+        if (record.fingerprint.equals(fingerprint)) {
+            return true;
+        }
+        //Touched (e.g. copied again) but of the same size: hash it, to skip it if its content is the same
+        return sizeOf(record.fingerprint).equals(sizeOf(fingerprint)) && !record.hash.equals(NONE)
+                && record.hash.equals(sha256(input));
+    }
+
+    /**
+     * @return the output of the OCR of the (unchanged) input file, when it was not uploaded yet (e.g. the upload
+     * failed) and the output is still there; null otherwise
+     */
+    public File getOcrOutput(Path input) throws IOException {
+        Record record = lastRecord(input);
+        if (record == null || record.status.equals(UPLOADED) || record.output.equals(NONE)
+                || !record.fingerprint.equals(fingerprint(input))) {
+            return null;
+        }
+        File output = new File(record.output);
+        return output.isFile() ? output : null;
+    }
+
+    /**
+     * Record the output of the OCR of the input file. The input is not hashed here, but before its upload, so that the
+     * OCR does not wait for the input to be read once more.
+     */
+    public void ocrDone(Path input, File output) throws IOException {
+        append(new Record(OCR_DONE, destination, key(input), fingerprint(input), NONE, output.getAbsolutePath(), NONE));
+    }
+
+    /**
+     * @return the fingerprint and content hash of the input file, to take before its upload and record with {@link
+     * #uploaded}: so that the version recorded is the one uploaded, and that nothing needs reading once it is
+     */
+    public InputVersion version(Path input) throws IOException {
+        return new InputVersion(fingerprint(input), sha256(input));
+    }
+
+    public void uploaded(Path input, InputVersion version, String response) throws IOException {
+        append(new Record(UPLOADED, destination, key(input), version.fingerprint, version.hash, NONE, response));
+    }
+
+    /**
+     * Record that the input file failed. The OCR output of the file, if any, is kept in the journal: a failed upload
+     * is retried without OCR'ing the file again.
+     */
+    public void failed(Path input, Throwable e) {
+        try {
+            Record previous = lastRecord(input);
+            boolean keepOutput = previous != null && !previous.status.equals(UPLOADED);
+            append(new Record(FAILED, destination, key(input), fingerprint(input), keepOutput ? previous.hash : NONE,
+                    keepOutput ? previous.output : NONE, String.valueOf(e)));
+        } catch (IOException journalError) {
+            //The file is not done either way: it will be retried
+            System.out.println("Could not journal failure of " + input + ": " + journalError.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        syncer.shutdownNow();
+        synchronized (this) {
+            sync(true);
+            writer.close();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    private synchronized void append(Record record) throws IOException {
+        writer.write(record.format());
+        writer.write('\n');
+        records.put(record.path, record);
+        unsyncedRecords++;
+        if (unsyncedRecords >= syncEvery) {
+            sync(true);
+        }
+    }
+
+    private synchronized void sync(boolean force) throws IOException {
+        if (unsyncedRecords == 0 && !force) {
+            return;
+        }
+        writer.flush();
+        channel.force(false);
+        unsyncedRecords = 0;
+    }
+
+    private synchronized Record lastRecord(Path input) {
+        return records.get(key(input));
+    }
+
+    private static String key(Path input) {
+        return input.toAbsolutePath().normalize().toString();
+    }
+
+    private static String fingerprint(Path input) throws IOException {
+        return Files.size(input) + ":" + Files.getLastModifiedTime(input).toMillis();
+    }
+
+    private static String sizeOf(String fingerprint) {
+        return fingerprint.substring(0, fingerprint.indexOf(':') + 1);
+    }
+
+    private static String sha256(Path input) throws IOException {
+        try (InputStream in = Files.newInputStream(input)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Fingerprint (size and modification time) and content hash of an input file.
+     */
+    public static class InputVersion {
+        private final String fingerprint;
+        private final String hash;
+
+        private InputVersion(String fingerprint, String hash) {
+            this.fingerprint = fingerprint;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * One line of the journal: status, destination, input path, fingerprint (size and modification time) and content
+     * hash of the input, path of the OCR output, and detail (the response of tagtog, or the error). Fields are
+     * separated by tabs; tabs, newlines and backslashes within them are escaped.
+     */
+    private static class Record {
+        final String status;
+        final String destination;
+        final String path;
+        final String fingerprint;
+        final String hash;
+        final String output;
+        final String detail;
+
+        Record(String status, String destination, String path, String fingerprint, String hash, String output,
+               String detail) {
+            this.status = status;
+            this.destination = destination;
+            this.path = path;
+            this.fingerprint = fingerprint;
+            this.hash = hash;
+            this.output = output;
+            this.detail = detail;
+        }
+
+        String format() {
+            return String.join("\t", escape(status), escape(destination), escape(path), escape(fingerprint),
+                    escape(hash), escape(output), escape(detail));
+        }
+
+        static Record parse(String line) {
+            String[] fields = line.split("\t", -1);
+            if (fields.length != 7) {
+                return null;
+            }
+            return new Record(unescape(fields[0]), unescape(fields[1]), unescape(fields[2]), unescape(fields[3]),
+                    unescape(fields[4]), unescape(fields[5]), unescape(fields[6]));
+        }
+
+        private static String escape(String field) {
+            return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+        }
+
+        private static String unescape(String field) {
+            StringBuilder unescaped = new StringBuilder(field.length());
+            for (int i = 0; i < field.length(); i++) {
+                char c = field.charAt(i);
+                if (c == '\\' && i + 1 < field.length()) {
+                    char escaped = field.charAt(++i);
+                    unescaped.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+                } else {
+                    unescaped.append(c);
+                }
+            }
+            return unescaped.toString();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Runs a two-stage job (e.g. OCR, then upload) over many files concurrently.
+ *
+ * Each stage has its own pool, so the first stage of a file overlaps the second stage of the previous ones. The number
+ * of files in flight is bounded: {@link #submit} blocks when the window is full, hence walking a huge tree does not
+ * queue up every file at once. A failing file does not stop the batch; its error is collected and reported at the end.
+ *
+ * @param <T> result of the first stage, handed to the second stage
+ */
+public class BatchRunner<T> {
+
+    private final ThreadPoolExecutor firstStagePool;
+    private final ThreadPoolExecutor secondStagePool;
+    private final Semaphore window;
+
+    private final Phaser pending = new Phaser(1);
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final Map<Path, Throwable> failures = new ConcurrentSkipListMap<>();
+
+    public BatchRunner(int firstStageThreads, int secondStageThreads) {
+        this(firstStageThreads, secondStageThreads, Metrics.getDefault());
+    }
+
+    /**
+     * The files waiting for each stage are reported to metrics as the queues batch_first_stage and batch_second_stage.
+     */
+    public BatchRunner(int firstStageThreads, int secondStageThreads, Metrics metrics) {
+        if (firstStageThreads < 1 || secondStageThreads < 1) {
+            throw new IllegalArgumentException("Batch thread counts must be positive");
+        }
+        this.firstStagePool = (ThreadPoolExecutor) Executors.newFixedThreadPool(firstStageThreads);
+        this.secondStagePool = (ThreadPoolExecutor) Executors.newFixedThreadPool(secondStageThreads);
+        this.window = new Semaphore(2 * (firstStageThreads + secondStageThreads));
+        metrics.queue("batch_first_stage", () -> firstStagePool.getQueue().size());
+        metrics.queue("batch_second_stage", () -> secondStagePool.getQueue().size());
+    }
+
+    public void submit(Path path, Function<Path, T> firstStage, BiConsumer<Path, T> secondStage) {
+        window.acquireUninterruptibly();
+        pending.register();
+
+        CompletableFuture
+                .supplyAsync(() -> firstStage.apply(path), firstStagePool)
+                .thenAcceptAsync(result -> secondStage.accept(path, result), secondStagePool)
+                .whenComplete((result, e) -> {
+                    if (e == null) {
+                        succeeded.incrementAndGet();
+                    } else {
+                        Throwable cause = (e instanceof CompletionException && e.getCause() != null) ? e.getCause() : e;
+                        failures.put(path, cause);
+                        System.out.println("FAILED " + path + ": " + cause);
+                    }
+                    window.release();
+                    pending.arriveAndDeregister();
+                });
+    }
+
+    /**
+     * Wait until every submitted file is done and shut the pools down.
+     *
+     * @return the failed files with their error, sorted by path; empty when every file succeeded
+     */
+    public Map<Path, Throwable> awaitCompletion() {
+        pending.arriveAndAwaitAdvance();
+        firstStagePool.shutdown();
+        secondStagePool.shutdown();
+
+        System.out.println("Batch done: " + succeeded.get() + " succeeded, " + failures.size() + " failed");
+        return failures;
+    }
+}
@@ -1,35 +1,150 @@
+import com.amazon.textract.pdf.PDFDocument;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.s3.event.S3EventNotification;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Makes searchable pdfs of the pdfs and images uploaded to S3, for every record of the S3 event.
+ *
+ * The records are processed concurrently, as many at a time as the memory of the function allows (LAMBDA_MB_PER_RECORD
+ * megabytes each; default: 512). Each output is written to the same bucket, under the key of its input prefixed with
+ * LAMBDA_OUTPUT_PREFIX (default: "searchable/") and followed by ".pdf" (e.g. scan.png gives searchable/scan.png.pdf,
+ * so that it does not collide with the output of scan.pdf). Keys under that prefix are skipped, so that the outputs
+ * do not trigger the function again; the prefix must thus not be empty.
+ *
+ * Clients, processors and PDFBox fonts are kept in static fields, so that warm starts reuse them.
+ *
+ * If any record fails, or is not done before the invocation times out, the handler fails (after all records have been
+ * tried), so that Lambda retries the event; records that succeeded are then processed again into the same keys.
+ */
 public class DemoLambda implements RequestHandler<S3Event, String> {
 
+    private static final String OUTPUT_PREFIX = Optional.ofNullable(System.getenv("LAMBDA_OUTPUT_PREFIX"))
+            .map(prefix -> {
+                if (prefix.isEmpty()) {
+                    throw new IllegalArgumentException("The envar LAMBDA_OUTPUT_PREFIX must not be empty: every key"
+                            + " would be skipped as an output");
+                }
+                return prefix;
+            })
+            .orElse("searchable/");
+
+    // Stop waiting for records this long before the invocation times out, to report them
+    private static final long TIMEOUT_MARGIN_MILLIS = 5000;
+
+    private static final DemoPdfFromS3Pdf S3_PDF;
+    private static final DemoPdfFromS3Image S3_IMAGE;
+    private static final ExecutorService RECORD_POOL;
+
+    static {
+        S3_PDF = new DemoPdfFromS3Pdf();
+        S3_IMAGE = new DemoPdfFromS3Image();
+
+        int memoryMegabytes = Optional.ofNullable(System.getenv("AWS_LAMBDA_FUNCTION_MEMORY_SIZE"))
+                .map(Integer::parseInt).orElse(1024);
+        int megabytesPerRecord = Optional.ofNullable(System.getenv("LAMBDA_MB_PER_RECORD"))
+                .map(Integer::parseInt).orElse(512);
+        AtomicInteger counter = new AtomicInteger();
+        RECORD_POOL = Executors.newFixedThreadPool(Math.max(1, memoryMegabytes / megabytesPerRecord), runnable -> {
+            Thread thread = new Thread(runnable, "lambda-record-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        //Load the standard fonts (and their glyph widths) during the init phase, not in the first invocation
+        try {
+            new PDFDocument().close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @Override
     public String handleRequest(S3Event event, Context ctx) {
 
-        S3EventNotification.S3EventNotificationRecord record = event.getRecords().get(0);
+        List<S3EventNotification.S3EventNotificationRecord> records = event.getRecords();
+        List<String> keys = new ArrayList<>(records.size());
+        List<Future<String>> results = new ArrayList<>(records.size());
+
+        for (S3EventNotification.S3EventNotificationRecord record : records) {
+            String bucketName = record.getS3().getBucket().getName();
+            String keyName = record.getS3().getObject().getUrlDecodedKey();
+            keys.add(bucketName + "/" + keyName);
+            results.add(RECORD_POOL.submit(() -> processRecord(bucketName, keyName)));
+        }
 
-        String bucketName = record.getS3().getBucket().getName();
-        String keyName = record.getS3().getObject().getKey();
-        String keyNameLower = record.getS3().getObject().getKey().toLowerCase();
+        //Wait for all records, until shortly before the invocation times out
+        long deadline = System.currentTimeMillis() + ctx.getRemainingTimeInMillis() - TIMEOUT_MARGIN_MILLIS;
+        StringBuilder summary = new StringBuilder();
+        int failures = 0;
+        for (int i = 0; i < results.size(); i++) {
+            String result;
+            try {
+                result = results.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                failures++;
+                result = "FAILED: " + e.getCause();
+                e.getCause().printStackTrace();
+            } catch (TimeoutException e) {
+                failures++;
+                result = "TIMED OUT";
+                results.get(i).cancel(true);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failures++;
+                result = "INTERRUPTED";
+            }
+            summary.append(keys.get(i)).append(": ").append(result).append('\n');
+        }
+
+        System.out.println(summary);
+        //The function may be frozen until the next invocation: export now
+        Metrics.getDefault().export();
+        if (failures > 0) {
+            throw new IllegalStateException(failures + " of " + records.size() + " records failed:\n" + summary);
+        }
+        return summary.toString();
+    }
+
+    /**
+     * @return what was done with the record, e.g. the key of the generated searchable pdf
+     */
+    private static String processRecord(String bucketName, String keyName) throws IOException, InterruptedException {
 
         System.out.println("Bucket Name is " + bucketName);
         System.out.println("File Path is " + keyName);
 
-        try {
-            if (keyNameLower.endsWith("pdf")) {
-                DemoPdfFromS3Pdf s3Pdf = new DemoPdfFromS3Pdf();
-                s3Pdf.run(bucketName, keyName, "Output.pdf");
+        if (keyName.startsWith(OUTPUT_PREFIX)) {
+            return "skipped (output)";
+        }
 
-            } else if (keyNameLower.endsWith("jpg") || keyNameLower.endsWith("jpeg") || keyNameLower.endsWith("png")) {
-                DemoPdfFromS3Image s3Image = new DemoPdfFromS3Image();
-                s3Image.run(bucketName, keyName, "Output.pdf");
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            System.out.println(e.getMessage());
+        String keyNameLower = keyName.toLowerCase();
+        String outputKeyName = outputKeyName(keyName);
+
+        if (keyNameLower.endsWith("pdf")) {
+            S3_PDF.run(bucketName, keyName, outputKeyName);
+
+        } else if (keyNameLower.endsWith("jpg") || keyNameLower.endsWith("jpeg") || keyNameLower.endsWith("png")) {
+            S3_IMAGE.run(bucketName, keyName, outputKeyName);
+
+        } else {
+            return "skipped (not a pdf nor an image)";
         }
-        return null;
+        return bucketName + "/" + outputKeyName;
+    }
+
+    /**
+     * The extension of the input is kept, so that inputs differing only by their extension get different outputs.
+     */
+    private static String outputKeyName(String keyName) {
+        return OUTPUT_PREFIX + keyName + ".pdf";
     }
-}
\ No newline at end of file
+}
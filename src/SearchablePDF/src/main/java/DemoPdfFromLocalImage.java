@@ -1,89 +1,100 @@
 import com.amazon.textract.pdf.ImageType;
+import com.amazon.textract.pdf.OutputProfile;
 import com.amazon.textract.pdf.PDFDocument;
 import com.amazon.textract.pdf.TextLine;
-import com.amazonaws.services.textract.AmazonTextract;
-import com.amazonaws.services.textract.AmazonTextractClientBuilder;
-import com.amazonaws.services.textract.model.*;
 import com.amazonaws.util.IOUtils;
 import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.List;
 
 public class DemoPdfFromLocalImage implements OcrProcessor {
 
-    public void run(String documentName, String outputDocumentName) throws IOException {
-
-        System.out.println("Generating searchable pdf from: " + documentName);
+    private final OcrEngine ocrEngine;
+    private final OcrResultCache cache; // null when caching is disabled
+    private final Metrics metrics;
 
-        ImageType imageType = ImageType.JPEG;
-        if(documentName.toLowerCase().endsWith(".png"))
-            imageType = ImageType.PNG;
-
-        //Get image bytes
-        ByteBuffer imageBytes = null;
-        try(InputStream in = new FileInputStream(documentName)) {
-            imageBytes = ByteBuffer.wrap(IOUtils.toByteArray(in));
-        }
+    public DemoPdfFromLocalImage() {
+        this(OcrEngine.fromEnvironment(AwsClients.getDefault()), OcrResultCache.getDefault(), Metrics.getDefault());
+    }
 
-        //Extract text
-        List<TextLine> lines = extractText(imageBytes);
+    public DemoPdfFromLocalImage(OcrEngine ocrEngine, OcrResultCache cache, Metrics metrics) {
+        //Cached results are returned without calling the engine
+        this.ocrEngine = cache != null ? cache.wrap(ocrEngine) : ocrEngine;
+        this.cache = cache;
+        this.metrics = metrics;
+    }
 
-        //Get Image
-        BufferedImage image = getImage(documentName);
+    public void run(String documentName, String outputDocumentName) throws IOException {
 
-        //Create new pdf document
-        PDFDocument pdfDocument = new PDFDocument();
+        Metrics.Stage documentStage = metrics.stage("document");
+        Metrics.Timer documentTimer = documentStage.time();
 
-        //Add page with text layer and image in the pdf document
-        pdfDocument.addPage(image, imageType, lines);
+        PDFDocument pdfDocument = generate(documentName);
 
         //Save PDF to local disk
-        try(OutputStream outputStream = new FileOutputStream(outputDocumentName)) {
+        Metrics.Stage saveStage = metrics.stage("save");
+        try(OutputStream outputStream = new FileOutputStream(outputDocumentName);
+            Metrics.Timer timer = saveStage.time()) {
             pdfDocument.save(outputStream);
+        } finally {
             pdfDocument.close();
         }
+        long outputBytes = new File(outputDocumentName).length();
+        saveStage.addBytesOut(outputBytes);
+
+        documentTimer.close();
+        documentStage.addPages(1);
+        documentStage.addBytesIn(new File(documentName).length());
+        documentStage.addBytesOut(outputBytes);
+
+        if (cache != null) {
+            System.out.println(cache);
+        }
 
         System.out.println("Generated searchable pdf: " + outputDocumentName);
     }
 
-    private BufferedImage getImage(String documentName) throws IOException {
+    public PDFDocument generate(String documentName) throws IOException {
 
-        BufferedImage image = null;
+        System.out.println("Generating searchable pdf from: " + documentName);
 
+        ImageType imageType = ImageType.JPEG;
+        if(documentName.toLowerCase().endsWith(".png"))
+            imageType = ImageType.PNG;
+
+        //Get image bytes
+        byte[] imageBytes = null;
         try(InputStream in = new FileInputStream(documentName)) {
-            image = ImageIO.read(in);
+            imageBytes = IOUtils.toByteArray(in);
         }
 
-        return image;
-    }
-
-    private List<TextLine> extractText(ByteBuffer imageBytes) {
-
-        AmazonTextract client = AmazonTextractClientBuilder.defaultClient();
-
-        DetectDocumentTextRequest request = new DetectDocumentTextRequest()
-                .withDocument(new Document()
-                        .withBytes(imageBytes));
+        //Extract text
+        List<TextLine> lines;
+        Metrics.Stage ocrStage = metrics.stage("ocr");
+        try (Metrics.Timer timer = ocrStage.time()) {
+            lines = OcrEngine.join(ocrEngine.detectText(ByteBuffer.wrap(imageBytes)));
+        }
+        ocrStage.addPages(1);
+        ocrStage.addBytesIn(imageBytes.length);
 
-        DetectDocumentTextResult result = client.detectDocumentText(request);
+        //Create new pdf document
+        PDFDocument pdfDocument = new PDFDocument();
 
-        List<TextLine> lines = new ArrayList<TextLine>();
-        List<Block> blocks = result.getBlocks();
-        BoundingBox boundingBox = null;
-        for (Block block : blocks) {
-            if ((block.getBlockType()).equals("LINE")) {
-                boundingBox = block.getGeometry().getBoundingBox();
-                lines.add(new TextLine(boundingBox.getLeft(),
-                        boundingBox.getTop(),
-                        boundingBox.getWidth(),
-                        boundingBox.getHeight(),
-                        block.getText()));
+        //Add page with text layer and image in the pdf document: the image bytes sent to the OCR, unless the image is
+        //to be converted (e.g. to grayscale)
+        Metrics.Stage assembleStage = metrics.stage("assemble");
+        try (Metrics.Timer timer = assembleStage.time()) {
+            if (pdfDocument.getOutputProfile() == OutputProfile.COLOR) {
+                pdfDocument.addPage(imageBytes, imageType, lines);
+            } else {
+                pdfDocument.addPage(ImageIO.read(new ByteArrayInputStream(imageBytes)), imageType, lines);
             }
+        } catch (IOException | RuntimeException e) {
+            pdfDocument.close();
+            throw e;
         }
-
-        return lines;
+        assembleStage.addPages(1);
+        return pdfDocument;
     }
 }
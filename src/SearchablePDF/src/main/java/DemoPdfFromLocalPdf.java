@@ -1,89 +1,82 @@
-import com.amazon.textract.pdf.ImageType;
 import com.amazon.textract.pdf.PDFDocument;
-import com.amazon.textract.pdf.TextLine;
-import com.amazonaws.services.textract.AmazonTextract;
-import com.amazonaws.services.textract.AmazonTextractClientBuilder;
-import com.amazonaws.services.textract.model.*;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.rendering.PDFRenderer;
-import org.apache.pdfbox.tools.imageio.ImageIOUtil;
-import java.awt.image.BufferedImage;
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
 public class DemoPdfFromLocalPdf implements OcrProcessor {
 
-    private List<TextLine> extractText(ByteBuffer imageBytes){
+    private final OcrEngine ocrEngine;
+    private final PagePipeline pipeline;
+    private final OcrResultCache cache; // null when caching is disabled
+    private final Metrics metrics;
 
-        AmazonTextract client = AmazonTextractClientBuilder.defaultClient();
-
-        DetectDocumentTextRequest request = new DetectDocumentTextRequest()
-                .withDocument(new Document()
-                        .withBytes(imageBytes));
-
-        DetectDocumentTextResult result = client.detectDocumentText(request);
-
-        List<TextLine> lines = new ArrayList<TextLine>();
-        List<Block> blocks = result.getBlocks();
-        BoundingBox boundingBox = null;
-        for (Block block : blocks) {
-            if ((block.getBlockType()).equals("LINE")) {
-                boundingBox = block.getGeometry().getBoundingBox();
-                lines.add(new TextLine(boundingBox.getLeft(),
-                        boundingBox.getTop(),
-                        boundingBox.getWidth(),
-                        boundingBox.getHeight(),
-                        block.getText()));
-            }
-        }
+    public DemoPdfFromLocalPdf() {
+        this(OcrEngine.fromEnvironment(AwsClients.getDefault()), PagePipeline.fromEnvironment(),
+                OcrResultCache.getDefault(), Metrics.getDefault());
+    }
 
-        return lines;
+    public DemoPdfFromLocalPdf(OcrEngine ocrEngine, PagePipeline pipeline, OcrResultCache cache, Metrics metrics) {
+        //Cached results are returned without calling the engine
+        this.ocrEngine = cache != null ? cache.wrap(ocrEngine) : ocrEngine;
+        this.pipeline = pipeline;
+        this.cache = cache;
+        this.metrics = metrics;
     }
 
     public void run(String documentName, String outputDocumentName) throws IOException {
+        run(documentName, outputDocumentName, 0, Integer.MAX_VALUE);
+    }
 
-        System.out.println("Generating searchable pdf from: " + documentName);
-
-        PDFDocument pdfDocument = new PDFDocument();
+    /**
+     * Generate a searchable pdf of the pages from firstPage (included) to endPage (excluded) only, e.g. a shard of a
+     * large document (see {@link ShardedPdf}).
+     */
+    public void run(String documentName, String outputDocumentName, int firstPage, int endPage) throws IOException {
 
-        List<TextLine> lines = null;
-        BufferedImage image = null;
-        ByteArrayOutputStream byteArrayOutputStream = null;
-        ByteBuffer imageBytes = null;
+        Metrics.Stage documentStage = metrics.stage("document");
+        Metrics.Timer documentTimer = documentStage.time();
 
-        //Load pdf document and process each page as image
-        PDDocument inputDocument = PDDocument.load(new File(documentName));
-        PDFRenderer pdfRenderer = new PDFRenderer(inputDocument);
-        for (int page = 0; page < inputDocument.getNumberOfPages(); ++page) {
+        PDFDocument pdfDocument = generate(documentName, firstPage, endPage);
+        int numberOfPages = pdfDocument.getNumberOfPages();
 
-            //Render image
-            image = pdfRenderer.renderImageWithDPI(page, 300, org.apache.pdfbox.rendering.ImageType.RGB);
+        //Save PDF to local disk
+        Metrics.Stage saveStage = metrics.stage("save");
+        try (OutputStream outputStream = new FileOutputStream(outputDocumentName);
+             Metrics.Timer timer = saveStage.time()) {
+            pdfDocument.save(outputStream);
+            System.out.println("Memory: " + pdfDocument.getMemoryReport());
+        } finally {
+            pdfDocument.close();
+        }
+        long outputBytes = new File(outputDocumentName).length();
+        saveStage.addBytesOut(outputBytes);
 
-            //Get image bytes
-            byteArrayOutputStream = new ByteArrayOutputStream();
-            ImageIOUtil.writeImage(image, "jpeg", byteArrayOutputStream);
-            byteArrayOutputStream.flush();
-            imageBytes = ByteBuffer.wrap(byteArrayOutputStream.toByteArray());
+        documentTimer.close();
+        documentStage.addPages(numberOfPages);
+        documentStage.addBytesIn(new File(documentName).length());
+        documentStage.addBytesOut(outputBytes);
 
-            //Extract text
-            lines = extractText(imageBytes);
+        if (cache != null) {
+            System.out.println(cache);
+        }
 
-            //Add extracted text to pdf page
-            pdfDocument.addPage(image, ImageType.JPEG, lines);
+        System.out.println("Generated searchable pdf: " + outputDocumentName);
+    }
 
-            System.out.println("Processed page index: " + page);
-        }
+    public PDFDocument generate(String documentName) throws IOException {
+        return generate(documentName, 0, Integer.MAX_VALUE);
+    }
 
-        inputDocument.close();
+    private PDFDocument generate(String documentName, int firstPage, int endPage) throws IOException {
+        System.out.println("Generating searchable pdf from: " + documentName
+                + (firstPage > 0 || endPage < Integer.MAX_VALUE ? " (pages " + firstPage + " to " + endPage + ")" : ""));
 
-        //Save PDF to local disk
-        try (OutputStream outputStream = new FileOutputStream(outputDocumentName)) {
-            pdfDocument.save(outputStream);
+        PDFDocument pdfDocument = new PDFDocument();
+        try {
+            //Render, OCR and add each page of the pdf document, pages overlapping each other in the pipeline
+            pipeline.run(new File(documentName), firstPage, endPage, pdfDocument, ocrEngine);
+        } catch (IOException | RuntimeException e) {
             pdfDocument.close();
+            throw e;
         }
-
-        System.out.println("Generated searchable pdf: " + outputDocumentName);
+        return pdfDocument;
     }
 }
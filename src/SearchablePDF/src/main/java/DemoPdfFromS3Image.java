@@ -2,65 +2,49 @@ import com.amazon.textract.pdf.ImageType;
 import com.amazon.textract.pdf.PDFDocument;
 import com.amazon.textract.pdf.TextLine;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.textract.AmazonTextract;
-import com.amazonaws.services.textract.AmazonTextractClientBuilder;
-import com.amazonaws.services.textract.model.*;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class DemoPdfFromS3Image {
 
-    private List<TextLine> extractText(String bucketName, String documentName){
-        AmazonTextract client = AmazonTextractClientBuilder.defaultClient();
-
-        DetectDocumentTextRequest request = new DetectDocumentTextRequest()
-                .withDocument(new Document()
-                        .withS3Object(new S3Object()
-                                .withName(documentName)
-                                .withBucket(bucketName)));
-
-        DetectDocumentTextResult result = client.detectDocumentText(request);
-
-        List<TextLine> lines = new ArrayList<TextLine>();
-        List<Block> blocks = result.getBlocks();
-        BoundingBox boundingBox = null;
-        for (Block block : blocks) {
-            if ((block.getBlockType()).equals("LINE")) {
-                boundingBox = block.getGeometry().getBoundingBox();
-                lines.add(new TextLine(boundingBox.getLeft(),
-                        boundingBox.getTop(),
-                        boundingBox.getWidth(),
-                        boundingBox.getHeight(),
-                        block.getText()));
-            }
-        }
+    private final AwsClients clients;
+    private final OcrEngine ocrEngine;
+    private final Metrics metrics;
+
+    public DemoPdfFromS3Image() {
+        this(AwsClients.getDefault(), OcrEngine.fromEnvironment(AwsClients.getDefault()), Metrics.getDefault());
+    }
 
-        return lines;
+    public DemoPdfFromS3Image(AwsClients clients, OcrEngine ocrEngine, Metrics metrics) {
+        this.clients = clients;
+        this.ocrEngine = ocrEngine;
+        this.metrics = metrics;
     }
 
     private BufferedImage getImageFromS3(String bucketName, String documentName) throws IOException {
 
-        AmazonS3 s3client = AmazonS3ClientBuilder.defaultClient();
+        AmazonS3 s3client = clients.s3();
         com.amazonaws.services.s3.model.S3Object fullObject = s3client.getObject(new GetObjectRequest(bucketName, documentName));
+        metrics.stage("s3_download").addBytesIn(fullObject.getObjectMetadata().getContentLength());
         BufferedImage image = ImageIO.read(fullObject.getObjectContent());
         return image;
     }
 
-    private void UploadToS3(String bucketName, String objectName, String contentType, byte[] bytes) throws IOException {
-        AmazonS3 s3client = AmazonS3ClientBuilder.defaultClient();
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(bytes);
-        ObjectMetadata metadata = new ObjectMetadata();
-        metadata.setContentLength(bytes.length);
-        metadata.setContentType(contentType);
-        PutObjectRequest putRequest = new PutObjectRequest(bucketName, objectName, baInputStream, metadata);
-        s3client.putObject(putRequest);
+    private void saveToS3(PDFDocument pdfDocument, String bucketName, String objectName) throws IOException {
+        Metrics.Stage uploadStage = metrics.stage("s3_upload");
+        S3MultipartOutputStream os = new S3MultipartOutputStream(clients.s3(), bucketName, objectName, "application/pdf");
+        try (Metrics.Timer timer = uploadStage.time()) {
+            pdfDocument.save(os);
+            os.complete();
+            uploadStage.addBytesOut(os.getBytesWritten());
+        } catch (IOException | RuntimeException e) {
+            os.abort();
+            throw e;
+        }
     }
 
     public void run(String bucketName, String documentName, String outputDocumentName) throws IOException {
@@ -71,25 +55,39 @@ public class DemoPdfFromS3Image {
         if(documentName.toLowerCase().endsWith(".png"))
             imageType = ImageType.PNG;
 
-        //Extract text
-        List<TextLine> lines = extractText(bucketName, documentName);
+        Metrics.Timer documentTimer = metrics.stage("document").time();
+
+        //Extract text, while the image is downloaded
+        Metrics.Timer ocrTimer = metrics.stage("ocr").time();
+        CompletableFuture<List<TextLine>> pendingLines = ocrEngine.detectText(bucketName, documentName);
+        pendingLines.whenComplete((lines, e) -> ocrTimer.close());
 
         //Get image from S3
-        BufferedImage image = getImageFromS3(bucketName, documentName);
+        BufferedImage image;
+        try (Metrics.Timer timer = metrics.stage("s3_download").time()) {
+            image = getImageFromS3(bucketName, documentName);
+        }
+
+        List<TextLine> lines = OcrEngine.join(pendingLines);
+        metrics.stage("ocr").addPages(1);
 
         //Create PDF document
         PDFDocument pdfDocument = new PDFDocument();
 
-        //Add page with text layer and image in the pdf document
-        pdfDocument.addPage(image, imageType, lines);
-
-        //Save PDF to stream
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        pdfDocument.save(os);
-        pdfDocument.close();
+        try {
+            //Add page with text layer and image in the pdf document
+            try (Metrics.Timer timer = metrics.stage("assemble").time()) {
+                pdfDocument.addPage(image, imageType, lines);
+            }
+            metrics.stage("assemble").addPages(1);
 
-        //Upload PDF to S3
-        UploadToS3(bucketName, outputDocumentName, "application/pdf", os.toByteArray());
+            //Save PDF to S3, uploading it while it is written
+            saveToS3(pdfDocument, bucketName, outputDocumentName);
+        } finally {
+            pdfDocument.close();
+        }
+        metrics.stage("document").addPages(1);
+        documentTimer.close();
 
         System.out.println("Generated searchable pdf: " + bucketName + "/" + outputDocumentName);
     }
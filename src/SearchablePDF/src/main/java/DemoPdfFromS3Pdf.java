@@ -1,145 +1,215 @@
 import com.amazon.textract.pdf.ImageType;
 import com.amazon.textract.pdf.PDFDocument;
-import com.amazon.textract.pdf.TextLine;
+import com.amazon.textract.pdf.TextLayerDetector;
+import com.amazon.textract.pdf.PageLines;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.GetObjectRequest;
-import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.model.PutObjectRequest;
-import com.amazonaws.services.textract.AmazonTextract;
-import com.amazonaws.services.textract.AmazonTextractClientBuilder;
-import com.amazonaws.services.textract.model.*;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.rendering.PDFRenderer;
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.TimeUnit;
+import java.util.Optional;
 
 public class DemoPdfFromS3Pdf {
-    public void run(String bucketName, String documentName, String outputDocumentName) throws IOException, InterruptedException {
 
-        System.out.println("Generating searchable pdf from: " + bucketName + "/" + documentName);
+    //Start the Textract job while the pdf is downloaded, instead of once it is known that some page needs OCR; a job
+    //is then also paid for pdfs whose pages all have a text layer, so only do it if most inputs are scanned
+    private static final boolean STREAMING = Optional.ofNullable(System.getenv("PDF_STREAMING"))
+            .map(Boolean::parseBoolean).orElse(false);
+
+    private final AwsClients clients;
+    private final TextractJobTracker jobTracker;
+    private final TextLayerDetector textLayerDetector;
+    private final RenderResolutionPolicy resolutionPolicy;
+    private final Metrics metrics;
+    private final boolean streaming;
+
+    public DemoPdfFromS3Pdf() {
+        this(AwsClients.getDefault(), TextractJobTracker.getDefault(), TextLayerDetector.fromEnvironment(),
+                RenderResolutionPolicy.fromEnvironment(), Metrics.getDefault(), STREAMING);
+    }
 
-        //Extract text using Amazon Textract
-        List<ArrayList<TextLine>> linesInPages = extractText(bucketName, documentName);
+    /**
+     * @param streaming start the Textract job before downloading the pdf, so that both run at the same time; otherwise
+     *                  the job is only started when some page has no text layer (or right away, too, when text layers
+     *                  are not detected: every page needs OCR then)
+     */
+    public DemoPdfFromS3Pdf(AwsClients clients, TextractJobTracker jobTracker, TextLayerDetector textLayerDetector,
+                            RenderResolutionPolicy resolutionPolicy, Metrics metrics, boolean streaming) {
+        this.clients = clients;
+        this.jobTracker = jobTracker;
+        this.textLayerDetector = textLayerDetector;
+        this.resolutionPolicy = resolutionPolicy;
+        this.metrics = metrics;
+        this.streaming = streaming;
+    }
 
-        //Get input pdf document from Amazon S3
-        InputStream inputPdf = getPdfFromS3(bucketName, documentName);
+    public void run(String bucketName, String documentName, String outputDocumentName) throws IOException, InterruptedException {
 
-        //Create new PDF document
-        PDFDocument pdfDocument = new PDFDocument();
+        System.out.println("Generating searchable pdf from: " + bucketName + "/" + documentName);
+        Metrics.Timer documentTimer = metrics.stage("document").time();
+        Metrics.Stage textractStage = metrics.stage("textract_job");
+
+        //Start the Amazon Textract job right away, and download the pdf while it runs
+        TextDetectionJob textDetectionJob = null;
+        boolean jobAwaited = false;
+        PDDocument inputDocument = null;
+        PDFDocument pdfDocument = null;
+        PageAssembler assembler = null;
+        try {
+            long textractStartNanos = System.nanoTime();
+            if (streaming || !textLayerDetector.isEnabled()) {
+                textDetectionJob = TextDetectionJob.start(clients.textract(), jobTracker, bucketName, documentName);
+            }
 
-        //For each page add text layer and image in the pdf document
-        PDDocument inputDocument = PDDocument.load(inputPdf);
-        PDFRenderer pdfRenderer = new PDFRenderer(inputDocument);
-        BufferedImage image = null;
-        for (int page = 0; page < inputDocument.getNumberOfPages(); ++page) {
-            image = pdfRenderer.renderImageWithDPI(page, 300, org.apache.pdfbox.rendering.ImageType.RGB);
+            //Get input pdf document from Amazon S3
+            try (Metrics.Timer timer = metrics.stage("s3_download").time()) {
+                InputStream inputPdf = getPdfFromS3(bucketName, documentName);
+                inputDocument = PDDocument.load(inputPdf, PDFDocument.defaultMemoryUsageSetting());
+            }
 
-            pdfDocument.addPage(image, ImageType.JPEG, linesInPages.get(page));
+            //Born-digital pages already have a text layer; the others need OCR
+            boolean[] hasTextLayer = textLayerDetector.detect(inputDocument);
+            boolean anyPageNeedsOcr = false;
+            for (boolean pageHasTextLayer : hasTextLayer) {
+                anyPageNeedsOcr |= !pageHasTextLayer;
+            }
 
-            System.out.println("Processed page index: " + page);
-        }
+            //Extract text using Amazon Textract (an asynchronous job works on the whole document, not on some pages)
+            if (anyPageNeedsOcr && textDetectionJob == null) {
+                textractStartNanos = System.nanoTime();
+                textDetectionJob = TextDetectionJob.start(clients.textract(), jobTracker, bucketName, documentName);
+            } else if (!anyPageNeedsOcr && textDetectionJob != null) {
+                System.out.println("Text detection job not needed, every page has a text layer: " + textDetectionJob.getJobId());
+                textDetectionJob.abandon();
+                textDetectionJob = null;
+            }
+            if (textDetectionJob != null) {
+                jobAwaited = true;
+                textDetectionJob.await();
+                textractStage.record(System.nanoTime() - textractStartNanos);
+            }
 
-        //Save PDF to stream
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        pdfDocument.save(os);
-        pdfDocument.close();
-        inputDocument.close();
+            //Create new PDF document
+            pdfDocument = new PDFDocument();
+
+            //For each page add text layer and image in the pdf document, or copy it when it has a text layer already;
+            //pages are added as soon as their lines are read from the results of the job
+            assembler = new PageAssembler(inputDocument, hasTextLayer, pdfDocument);
+            if (textDetectionJob != null) {
+                int ocrPages = textDetectionJob.readPages(assembler::addPage);
+                textractStage.addPages(ocrPages);
+            } else {
+                for (int page = 0; page < inputDocument.getNumberOfPages(); ++page) {
+                    assembler.addPage(page, null);
+                }
+            }
+            if (assembler.pagesAdded < inputDocument.getNumberOfPages()) {
+                throw new IllegalStateException("Text detection job returned " + assembler.pagesAdded
+                        + " pages, the document has " + inputDocument.getNumberOfPages());
+            }
 
-        //Upload PDF to S3
-        UploadToS3(bucketName, outputDocumentName, "application/pdf", os.toByteArray());
+            //Save PDF to S3, uploading it while it is written
+            saveToS3(pdfDocument, bucketName, outputDocumentName);
+            System.out.println("Memory: " + pdfDocument.getMemoryReport());
+            metrics.stage("document").addPages(pdfDocument.getNumberOfPages());
+        } finally {
+            //E.g. the download failed while the job was already running
+            if (textDetectionJob != null && !jobAwaited) {
+                textDetectionJob.abandon();
+            }
+            try {
+                //Closes the input document too when pages were copied from it
+                if (pdfDocument != null) {
+                    pdfDocument.close();
+                }
+            } finally {
+                if (inputDocument != null && (assembler == null || !assembler.anyPageCopied)) {
+                    inputDocument.close();
+                }
+                documentTimer.close();
+            }
+        }
 
         System.out.println("Generated searchable pdf: " + bucketName + "/" + outputDocumentName);
     }
 
-    private List<ArrayList<TextLine>> extractText(String bucketName, String documentName) throws InterruptedException {
-
-        AmazonTextract client = AmazonTextractClientBuilder.defaultClient();
-
-        StartDocumentTextDetectionRequest req = new StartDocumentTextDetectionRequest()
-                .withDocumentLocation(new DocumentLocation()
-                        .withS3Object(new S3Object()
-                                .withBucket(bucketName)
-                                .withName(documentName)))
-                .withJobTag("DetectingText");
-
-        StartDocumentTextDetectionResult startDocumentTextDetectionResult = client.startDocumentTextDetection(req);
-        String startJobId = startDocumentTextDetectionResult.getJobId();
-
-        System.out.println("Text detection job started with Id: " + startJobId);
+    /**
+     * Adds the pages of the input document to the output one, in order.
+     */
+    private class PageAssembler {
+        final PDDocument inputDocument;
+        final boolean[] hasTextLayer;
+        final PDFDocument pdfDocument;
+        final PDFRenderer pdfRenderer;
+        final Metrics.Stage copyStage = metrics.stage("copy");
+        final Metrics.Stage renderStage = metrics.stage("render");
+        final Metrics.Stage assembleStage = metrics.stage("assemble");
+        int pagesAdded = 0;
+        boolean anyPageCopied = false;
+
+        PageAssembler(PDDocument inputDocument, boolean[] hasTextLayer, PDFDocument pdfDocument) {
+            this.inputDocument = inputDocument;
+            this.hasTextLayer = hasTextLayer;
+            this.pdfDocument = pdfDocument;
+            this.pdfRenderer = new PDFRenderer(inputDocument);
+        }
 
-        GetDocumentTextDetectionRequest documentTextDetectionRequest = null;
-        GetDocumentTextDetectionResult response = null;
+        void addPage(int page, PageLines lines) throws IOException {
+            if (page >= inputDocument.getNumberOfPages()) {
+                throw new IllegalStateException("Text detection job returned page index " + page
+                        + ", the document has " + inputDocument.getNumberOfPages() + " pages");
+            }
+            pagesAdded++;
 
-        String jobStatus = "IN_PROGRESS";
+            if (hasTextLayer[page]) {
+                try (Metrics.Timer timer = copyStage.time()) {
+                    pdfDocument.importPage(inputDocument, page);
+                }
+                anyPageCopied = true;
+                copyStage.addPages(1);
 
-        while (jobStatus.equals("IN_PROGRESS")) {
-            System.out.println("Waiting for job to complete...");
-            TimeUnit.SECONDS.sleep(10);
-            documentTextDetectionRequest = new GetDocumentTextDetectionRequest()
-                    .withJobId(startJobId)
-                    .withMaxResults(1);
+                System.out.println("Copied page index (has a text layer): " + page);
+                return;
+            }
 
-            response = client.getDocumentTextDetection(documentTextDetectionRequest);
-            jobStatus = response.getJobStatus();
-        }
+            float dpi = resolutionPolicy.dpiFor(inputDocument.getPage(page).getCropBox());
+            BufferedImage image;
+            try (Metrics.Timer timer = renderStage.time()) {
+                image = pdfRenderer.renderImageWithDPI(page, dpi, org.apache.pdfbox.rendering.ImageType.RGB);
+            }
+            renderStage.addPages(1);
 
-        int maxResults = 1000;
-        String paginationToken = null;
-        Boolean finished = false;
-
-        List<ArrayList<TextLine>> pages = new ArrayList<ArrayList<TextLine>>();
-        ArrayList<TextLine> page = null;
-        BoundingBox boundingBox = null;
-
-        while (finished == false) {
-            documentTextDetectionRequest = new GetDocumentTextDetectionRequest()
-                    .withJobId(startJobId)
-                    .withMaxResults(maxResults)
-                    .withNextToken(paginationToken);
-            response = client.getDocumentTextDetection(documentTextDetectionRequest);
-
-            //Show blocks information
-            List<Block> blocks = response.getBlocks();
-            for (Block block : blocks) {
-                if (block.getBlockType().equals("PAGE")) {
-                    page = new ArrayList<TextLine>();
-                    pages.add(page);
-                } else if (block.getBlockType().equals("LINE")) {
-                    boundingBox = block.getGeometry().getBoundingBox();
-                    page.add(new TextLine(boundingBox.getLeft(),
-                            boundingBox.getTop(),
-                            boundingBox.getWidth(),
-                            boundingBox.getHeight(),
-                            block.getText()));
-                }
+            PDRectangle pageSize = PDFDocument.renderedSize(inputDocument.getPage(page));
+            try (Metrics.Timer timer = assembleStage.time()) {
+                pdfDocument.addPage(image, ImageType.JPEG, lines, pageSize);
             }
-            paginationToken = response.getNextToken();
-            if (paginationToken == null)
-                finished = true;
-        }
+            assembleStage.addPages(1);
 
-        return pages;
+            System.out.println("Processed page index: " + page);
+        }
     }
 
     private InputStream getPdfFromS3(String bucketName, String documentName) throws IOException {
 
-        AmazonS3 s3client = AmazonS3ClientBuilder.defaultClient();
+        AmazonS3 s3client = clients.s3();
         com.amazonaws.services.s3.model.S3Object fullObject = s3client.getObject(new GetObjectRequest(bucketName, documentName));
+        metrics.stage("s3_download").addBytesIn(fullObject.getObjectMetadata().getContentLength());
         InputStream in = fullObject.getObjectContent();
         return in;
     }
 
-    private void UploadToS3(String bucketName, String objectName, String contentType, byte[] bytes) {
-        AmazonS3 s3client = AmazonS3ClientBuilder.defaultClient();
-        ByteArrayInputStream baInputStream = new ByteArrayInputStream(bytes);
-        ObjectMetadata metadata = new ObjectMetadata();
-        metadata.setContentLength(bytes.length);
-        metadata.setContentType(contentType);
-        PutObjectRequest putRequest = new PutObjectRequest(bucketName, objectName, baInputStream, metadata);
-        s3client.putObject(putRequest);
+    private void saveToS3(PDFDocument pdfDocument, String bucketName, String objectName) throws IOException {
+        Metrics.Stage uploadStage = metrics.stage("s3_upload");
+        S3MultipartOutputStream os = new S3MultipartOutputStream(clients.s3(), bucketName, objectName, "application/pdf");
+        try (Metrics.Timer timer = uploadStage.time()) {
+            pdfDocument.save(os);
+            os.complete();
+            uploadStage.addBytesOut(os.getBytesWritten());
+        } catch (IOException | RuntimeException e) {
+            os.abort();
+            throw e;
+        }
     }
 }
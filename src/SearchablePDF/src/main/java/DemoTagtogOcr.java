@@ -1,35 +1,19 @@
 import java.io.File;
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.AuthenticationException;
-import org.apache.http.auth.Credentials;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.mime.MultipartEntityBuilder;
-import org.apache.http.entity.mime.content.FileBody;
-import org.apache.http.impl.auth.BasicScheme;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.ssl.SSLContextBuilder;
-import org.apache.http.util.EntityUtils;
+
+import com.amazon.textract.pdf.PDFDocument;
 
 // https://eu-west-1.console.aws.amazon.com/textract/home?region=eu-west-1#/demo
 // https://docs.aws.amazon.com/textract/latest/dg/getting-started.html
@@ -43,28 +27,33 @@ public class DemoTagtogOcr {
     private static final String TAGTOG_PASSWORD = Optional.ofNullable(System.getenv("TAGTOG_PASSWORD"))
             .orElseThrow(() -> new IllegalArgumentException("You must define the envar: TAGTOG_PASSWORD"));
 
+    // Number of files OCR'ed, and uploaded, at the same time
+    private static final int OCR_THREADS = Optional.ofNullable(System.getenv("BATCH_OCR_THREADS"))
+            .map(Integer::parseInt).orElse(4);
+    private static final int UPLOAD_THREADS = Optional.ofNullable(System.getenv("BATCH_UPLOAD_THREADS"))
+            .map(Integer::parseInt).orElse(4);
+
+    // Number of searchable pdfs open (being generated, or waiting for their upload) at the same time, without journal
+    private static final int MAX_OPEN_PDFS = Optional.ofNullable(System.getenv("BATCH_MAX_OPEN_PDFS"))
+            .map(Integer::parseInt).orElse(OCR_THREADS + UPLOAD_THREADS);
+
+    private static final Semaphore openPdfs = new Semaphore(MAX_OPEN_PDFS);
+
     // -------------------------------------------------------------------------
 
     private static String ttProjectOwner;
     private static String ttProjectName;
     private static String ttProjectFolder;
 
-    private static CloseableHttpClient httpClient = null;
+    private static TagtogUploader uploader = null;
 
-    // -------------------------------------------------------------------------
+    // Records what is done, to resume the batch if it is restarted (null if disabled)
+    private static BatchJournal journal = null;
 
-    private static final String DOCS_API_URL = TAGTOG_DOMAIN + "/-api/documents/v1";
+    // -------------------------------------------------------------------------
 
     private static final Set<String> ACCEPTED_FILES_EXTS = Set.of("pdf", "png", "jpg", "jpeg");
 
-    private static final Credentials credentials = new UsernamePasswordCredentials(TAGTOG_USERNAME, TAGTOG_PASSWORD);
-
-    // https://github.com/apache/httpcomponents-client/blob/4.5.x/httpclient/src/examples/org/apache/http/examples/client/ClientAuthentication.java
-    private static final CredentialsProvider credsProvider = new BasicCredentialsProvider();
-    static {
-        credsProvider.setCredentials(AuthScope.ANY, credentials);
-    };
-
     // -------------------------------------------------------------------------
 
     private static final DemoPdfFromLocalPdf localPdf = new DemoPdfFromLocalPdf();
@@ -73,44 +62,100 @@ public class DemoTagtogOcr {
     // -------------------------------------------------------------------------
 
     public static void main(String args[]) throws Exception {
+        Map<Path, Throwable> failures = Map.of();
         try {
-            initHttpClient();
-
-            testTagtogCredentials();
-
             ttProjectOwner = args[0];
             ttProjectName = args[1];
             ttProjectFolder = args[2];
 
-            for (int i = 3; i < args.length; i++) {
-                String inputFilepath = args[i];
-                traverseTreeAndApply(inputFilepath, DemoTagtogOcr::doOcrAndUploadToTagtog);
+            uploader = TagtogUploader.fromEnvironment(TAGTOG_DOMAIN, TAGTOG_USERNAME, TAGTOG_PASSWORD, ttProjectOwner,
+                    ttProjectName, ttProjectFolder, UPLOAD_THREADS);
+
+            testTagtogCredentials();
+
+            journal = BatchJournal.fromEnvironment(
+                    String.join("/", TAGTOG_DOMAIN, ttProjectOwner, ttProjectName, ttProjectFolder));
+
+            BatchRunner<OcrOutput> batch = new BatchRunner<>(OCR_THREADS, UPLOAD_THREADS);
+            AtomicInteger skipped = new AtomicInteger();
+            try {
+                for (int i = 3; i < args.length; i++) {
+                    String inputFilepath = args[i];
+                    traverseTreeAndApply(inputFilepath, p -> {
+                        if (isAlreadyUploaded(p)) {
+                            skipped.incrementAndGet();
+                        } else {
+                            batch.submit(p, DemoTagtogOcr::doOcr, DemoTagtogOcr::uploadToTagtogAndDelete);
+                        }
+                    });
+                }
+            } finally {
+                failures = batch.awaitCompletion();
+                if (skipped.get() > 0) {
+                    System.out.println("Skipped " + skipped.get() + " files already uploaded (journal)");
+                }
             }
 
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            if (httpClient != null) {
-                httpClient.close();
+            if (uploader != null) {
+                uploader.close();
+            }
+            if (journal != null) {
+                journal.close();
             }
         }
+
+        failures.forEach((path, e) -> System.out.println("FAILED " + path + ": " + e));
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
     }
 
     // -------------------------------------------------------------------------
 
     public static void doOcrAndUploadToTagtog(Path inputPath) {
-        File outputTmpFile = null;
-        try {
-            outputTmpFile = doOcr(inputPath.toString()); // Hardcode path if needed when testing
+        OcrOutput output = doOcr(inputPath);
+
+        uploadToTagtogAndDelete(inputPath, output);
+    }
 
-            uploadToTagtog(outputTmpFile, maybeAddPdfExtension(inputPath));
+    /**
+     * OCR the input file. Without the journal, the searchable pdf is kept open, to be saved straight into its upload:
+     * at most BATCH_MAX_OPEN_PDFS of them are open at once, further files wait here for one to be uploaded. With the
+     * journal, it is saved to a file (so that a restarted run needs not OCR it again), or the output of a
+     * previous run that was not uploaded yet is reused.
+     */
+    public static OcrOutput doOcr(Path inputPath) {
+        if (journal == null) {
+            try {
+                openPdfs.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting to OCR " + inputPath, e);
+            }
+            try {
+                return new OcrOutput(null, generate(inputPath.toString()));
+            } catch (RuntimeException e) {
+                openPdfs.release();
+                throw e;
+            }
+        }
 
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        } finally {
-            if (outputTmpFile != null) {
-                outputTmpFile.delete();
+        try {
+            File outputFile = journal.getOcrOutput(inputPath);
+            if (outputFile != null) {
+                System.out.println("Reusing OCR output of " + inputPath + " (journal)");
+                return new OcrOutput(outputFile, null);
             }
+
+            outputFile = doOcr(inputPath.toString());
+            journal.ocrDone(inputPath, outputFile);
+            return new OcrOutput(outputFile, null);
+        } catch (Exception e) {
+            journal.failed(inputPath, e);
+            throw (e instanceof RuntimeException) ? (RuntimeException) e : new RuntimeException(e);
         }
     }
 
@@ -134,6 +179,23 @@ public class DemoTagtogOcr {
         }
     }
 
+    /**
+     * @return the searchable pdf of the input file, not saved; the caller saves and closes it
+     */
+    public static PDFDocument generate(String inputFilepath) {
+        OcrProcessor ocrProcessor = chooseOcr(inputFilepath);
+        Metrics.Stage documentStage = Metrics.getDefault().stage("document");
+
+        try (Metrics.Timer timer = documentStage.time()) {
+            PDFDocument pdfDocument = ocrProcessor.generate(inputFilepath);
+            documentStage.addPages(pdfDocument.getNumberOfPages());
+            documentStage.addBytesIn(new File(inputFilepath).length());
+            return pdfDocument;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Add ".pdf" extension to non PDF files (e.g. images like .png).
      *
@@ -150,58 +212,103 @@ public class DemoTagtogOcr {
     }
 
     /**
-     * References:
-     * https://stackoverflow.com/questions/6917105/java-http-client-to-upload-file-over-post
-     * https://stackoverflow.com/questions/9093237/setting-custom-file-name-in-apache-httpclient
-     * https://stackoverflow.com/questions/9907161/commons-httpclient-adding-query-string-parameters-to-get-post-request
-     *
      * @param file            file to upload to tagtog
      * @param desiredFilename filename that will be sent to tagtog
+     * @return the response of tagtog (status line and body)
+     * @throws IOException also if tagtog did not accept the file (after retries); @see TagtogUploader
      */
-    public static void uploadToTagtog(File file, String desiredFilename)
-            throws URISyntaxException, IOException, AuthenticationException {
-        URIBuilder urlBuilder = new URIBuilder(DOCS_API_URL);
-        urlBuilder.setParameter("owner", ttProjectOwner) //
-                .setParameter("project", ttProjectName) //
-                .setParameter("folder", ttProjectFolder) //
-                .setParameter("output", "null");
+    public static String uploadToTagtog(File file, String desiredFilename) throws IOException, InterruptedException {
+        return uploader.upload(file, desiredFilename);
+    }
 
-        HttpPost post = new HttpPost(urlBuilder.build());
+    /**
+     * Upload the pdf to tagtog, saving it only once: into the request itself, without writing it to disk, unless
+     * uploads are retried (then to a temporary file first).
+     *
+     * @see #uploadToTagtog(File, String)
+     */
+    public static String uploadToTagtog(PDFDocument pdfDocument, String desiredFilename)
+            throws IOException, InterruptedException {
+        return uploader.upload(pdfDocument::save, desiredFilename);
+    }
 
-        System.out.println("POST " + desiredFilename + " to:" + urlBuilder.build());
+    /**
+     * Upload the OCR output of inputPath to tagtog and delete the (temporary) output file, or close the output pdf,
+     * afterwards.
+     *
+     * With the journal, the output file is kept if the upload fails, so that a restarted run only retries the upload.
+     */
+    public static void uploadToTagtogAndDelete(Path inputPath, OcrOutput output) {
+        if (output.pdfDocument != null) {
+            try {
+                uploadToTagtog(output.pdfDocument, maybeAddPdfExtension(inputPath));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            } finally {
+                try {
+                    output.pdfDocument.close();
+                } catch (IOException e) {
+                    System.out.println("Could not close the output pdf of " + inputPath + ": " + e);
+                } finally {
+                    openPdfs.release();
+                }
+            }
+            return;
+        }
 
-        HttpEntity entity = MultipartEntityBuilder.create()
-                .addPart("files", new FileBody(file, ContentType.APPLICATION_OCTET_STREAM, desiredFilename)).build();
-        post.setEntity(entity);
+        File outputTmpFile = output.file;
+        boolean keepOutput = false;
+        BatchJournal.InputVersion inputVersion = null;
+        String response;
+        try {
+            //Hash the input before the upload: once tagtog has the file, it must not be failed for an I/O error
+            if (journal != null) {
+                inputVersion = journal.version(inputPath);
+            }
+            response = uploadToTagtog(outputTmpFile, maybeAddPdfExtension(inputPath));
+        } catch (Exception e) {
+            if (journal != null) {
+                journal.failed(inputPath, e);
+                keepOutput = true;
+            }
+            throw new RuntimeException(e);
+        } finally {
+            if (!keepOutput) {
+                outputTmpFile.delete();
+            }
+        }
 
-        try (CloseableHttpResponse response = httpClient.execute(doPreemptiveBasicAuth(post))) {
-            String responseBody = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
-            System.out.println(response.getStatusLine() + " " + responseBody);
+        if (journal != null) {
+            try {
+                journal.uploaded(inputPath, inputVersion, response);
+            } catch (IOException e) {
+                //The file is uploaded all the same; a restarted run uploads it again, though
+                System.out.println("Could not journal upload of " + inputPath + ": " + e.getMessage());
+            }
         }
     }
 
-    public static void testTagtogCredentials() throws URISyntaxException, IOException, AuthenticationException {
-        String userUrl = TAGTOG_DOMAIN + "/" + TAGTOG_USERNAME;
-
-        try (CloseableHttpResponse response = httpClient.execute(doPreemptiveBasicAuth(new HttpGet(userUrl)))) {
-            // Toggle when debugging
-            // Stream.of(response.getAllHeaders()).forEach(x -> System.out.println(x));
-            int statusCode = response.getStatusLine().getStatusCode();
+    public static void testTagtogCredentials() throws IOException, AuthenticationException {
+        uploader.checkCredentials();
+    }
 
-            if (statusCode != 200) {
-                throw new IllegalArgumentException(
-                        "The authentication credentials seem wrong. Received " + statusCode + " on " + userUrl);
-            }
+    private static boolean isAlreadyUploaded(Path inputPath) {
+        try {
+            return journal != null && journal.isUploaded(inputPath);
+        } catch (IOException e) {
+            return false;
         }
     }
 
     public static void traverseTreeAndApply(String inputFilepath, Consumer<Path> applyFun) throws IOException {
-        Files.walk(Paths.get(inputFilepath)).filter(p -> {
-            return Files.isRegularFile(p)
-                    && ACCEPTED_FILES_EXTS.contains(getLowercasedExtension(p.getFileName().toString()));
-        }).forEach(p -> {
-            applyFun.accept(p);
-        });
+        try (Stream<Path> paths = Files.walk(Paths.get(inputFilepath))) {
+            paths.filter(p -> {
+                return Files.isRegularFile(p)
+                        && ACCEPTED_FILES_EXTS.contains(getLowercasedExtension(p.getFileName().toString()));
+            }).forEach(p -> {
+                applyFun.accept(p);
+            });
+        }
     }
 
     // -------------------------------------------------------------------------
@@ -232,36 +339,21 @@ public class DemoTagtogOcr {
 
     // -------------------------------------------------------------------------
 
-    private static void initHttpClient() throws Exception {
-        httpClient = HttpClients.custom() //
-                .setDefaultCredentialsProvider(credsProvider) //
-                .setSSLContext(
-                        new SSLContextBuilder().loadTrustMaterial(null, TrustSelfSignedStrategy.INSTANCE).build()) //
-                // .setRedirectStrategy(new LaxRedirectStrategy())
-                .build();
-    }
-
     /**
-     * We do preemptive authentication for tagtog did not support pre-emptive
-     * authenticaton until 2021-04-25.
-     *
-     * This can be safely removed in a future version.
-     *
-     * References:
-     * https://github.com/apache/httpcomponents-client/blob/4.5.x/httpclient/src/examples/org/apache/http/examples/client/ClientPreemptiveBasicAuthentication.java
-     * https://stackoverflow.com/questions/7482523/preemptive-authentication-why
-     * https://stackoverflow.com/a/4328694
-     *
-     * @param httpRequest
-     * @return httpRequest with basic authentication credentials header
-     * @throws AuthenticationException
-     * @deprecated remove in future version
+     * OCR output of a file: either a saved file, or a pdf still open (to be saved into its upload).
      */
-    private static HttpUriRequest doPreemptiveBasicAuth(HttpUriRequest httpRequest) throws AuthenticationException {
-        httpRequest.addHeader(new BasicScheme().authenticate(credentials, httpRequest));
-        return httpRequest;
+    public static class OcrOutput {
+        public final File file;
+        public final PDFDocument pdfDocument;
+
+        public OcrOutput(File file, PDFDocument pdfDocument) {
+            this.file = file;
+            this.pdfDocument = pdfDocument;
+        }
     }
 
+    // -------------------------------------------------------------------------
+
     public static String getLowercasedExtension(String filepath) {
         String extension = "";
 
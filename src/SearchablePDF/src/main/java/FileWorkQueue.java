@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Work queue in a directory, shared by worker processes on one machine or on several ones (e.g. over NFS or Amazon
+ * EFS). Each task is a small properties file, which moves between the subdirectories pending, claimed, done and failed.
+ *
+ * Files are written aside and then renamed into place, and a worker claims a task by renaming it from pending to
+ * claimed: renames are atomic, so a task is claimed by a single worker and never read half-written.
+ *
+ * A claimed task is leased: its worker touches it every so often ({@link #heartbeat}), and a task not touched for
+ * leaseMillis (e.g. its worker was killed) goes back to pending, to be claimed again. So is a task that failed, until
+ * it failed maxAttempts times; then it goes to failed. Tasks are hence run at least once: they must be idempotent.
+ *
+ * The default settings come from these (optional) envars:
+ * <ul>
+ * <li>SHARD_LEASE_SECONDS (default: 300)</li>
+ * <li>SHARD_MAX_ATTEMPTS (default: 3)</li>
+ * </ul>
+ */
+public class FileWorkQueue {
+
+    public static final String PENDING = "pending";
+    public static final String CLAIMED = "claimed";
+    public static final String DONE = "done";
+    public static final String FAILED = "failed";
+
+    private static final String ATTEMPTS = "attempts";
+    private static final String ERROR = "error";
+
+    private final Path directory;
+    private final long leaseMillis;
+    private final int maxAttempts;
+
+    public FileWorkQueue(Path directory, long leaseMillis, int maxAttempts) throws IOException {
+        if (leaseMillis < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Lease and max attempts must be positive");
+        }
+        this.directory = directory;
+        this.leaseMillis = leaseMillis;
+        this.maxAttempts = maxAttempts;
+        for (String state : new String[]{PENDING, CLAIMED, DONE, FAILED}) {
+            Files.createDirectories(directory.resolve(state));
+        }
+    }
+
+    public static FileWorkQueue fromEnvironment(Path directory) throws IOException {
+        long leaseSeconds = Optional.ofNullable(System.getenv("SHARD_LEASE_SECONDS")).map(Long::parseLong).orElse(300L);
+        int maxAttempts = Optional.ofNullable(System.getenv("SHARD_MAX_ATTEMPTS")).map(Integer::parseInt).orElse(3);
+        return new FileWorkQueue(directory, leaseSeconds * 1000, maxAttempts);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getLeaseMillis() {
+        return leaseMillis;
+    }
+
+    /**
+     * Add a pending task; taskIds are claimed in their lexicographic order.
+     */
+    public void submit(String taskId, Properties task) throws IOException {
+        write(directory.resolve(PENDING).resolve(taskId), task);
+    }
+
+    /**
+     * Claim the first pending task, after putting the expired ones back.
+     *
+     * @return the claimed task, or null if no task is pending
+     */
+    public Task claim() throws IOException {
+        requeueExpired();
+        for (String taskId : list(PENDING)) {
+            Path pending = directory.resolve(PENDING).resolve(taskId);
+            Path claimed = directory.resolve(CLAIMED).resolve(taskId);
+            try {
+                //Renaming keeps the time of the file, which starts the lease
+                Files.setLastModifiedTime(pending, FileTime.fromMillis(System.currentTimeMillis()));
+                Files.move(pending, claimed, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                continue; //Claimed by another worker
+            }
+            return new Task(taskId, read(claimed));
+        }
+        return null;
+    }
+
+    /**
+     * Extend the lease of the task.
+     *
+     * @return false when the lease was lost, i.e. the task expired and was put back (it may run twice then)
+     */
+    public boolean heartbeat(Task task) throws IOException {
+        try {
+            Files.setLastModifiedTime(directory.resolve(CLAIMED).resolve(task.id),
+                    FileTime.fromMillis(System.currentTimeMillis()));
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    public void complete(Task task) throws IOException {
+        Path claimed = directory.resolve(CLAIMED).resolve(task.id);
+        try {
+            Files.move(claimed, directory.resolve(DONE).resolve(task.id), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            //The lease was lost: the task was done anyway, so it needs not run again, nor counts as failed
+            write(directory.resolve(DONE).resolve(task.id), task.properties);
+            Files.deleteIfExists(directory.resolve(PENDING).resolve(task.id));
+            Files.deleteIfExists(directory.resolve(FAILED).resolve(task.id));
+        }
+    }
+
+    /**
+     * Put the task back to pending, or to failed once it failed maxAttempts times.
+     */
+    public void fail(Task task, Throwable error) throws IOException {
+        Properties properties = new Properties();
+        properties.putAll(task.properties);
+        int attempts = Integer.parseInt(properties.getProperty(ATTEMPTS, "0")) + 1;
+        properties.setProperty(ATTEMPTS, Integer.toString(attempts));
+        properties.setProperty(ERROR, String.valueOf(error));
+        write(directory.resolve(attempts < maxAttempts ? PENDING : FAILED).resolve(task.id), properties);
+        Files.deleteIfExists(directory.resolve(CLAIMED).resolve(task.id));
+    }
+
+    /**
+     * @return the ids of the tasks in the state (e.g. {@link #DONE}), sorted
+     */
+    public List<String> list(String state) throws IOException {
+        try (Stream<Path> files = Files.list(directory.resolve(state))) {
+            return files.map(file -> file.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    public Properties read(String state, String taskId) throws IOException {
+        return read(directory.resolve(state).resolve(taskId));
+    }
+
+    /**
+     * @return true when no task is pending nor claimed
+     */
+    public boolean isDrained() throws IOException {
+        return list(PENDING).isEmpty() && list(CLAIMED).isEmpty();
+    }
+
+    /**
+     * Put the claimed tasks whose lease expired back to pending, counting an attempt.
+     */
+    private void requeueExpired() throws IOException {
+        long expiredBefore = System.currentTimeMillis() - leaseMillis;
+        for (String taskId : list(CLAIMED)) {
+            Path claimed = directory.resolve(CLAIMED).resolve(taskId);
+            Path expired = directory.resolve("expired-" + taskId + "-" + UUID.randomUUID());
+            try {
+                if (Files.getLastModifiedTime(claimed).toMillis() >= expiredBefore) {
+                    continue;
+                }
+                //Only one worker wins the rename, and requeues the task
+                Files.move(claimed, expired, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                continue;
+            }
+            System.out.println("Lease expired, putting task back: " + taskId);
+            fail(new Task(taskId, read(expired)), new IllegalStateException("Lease expired"));
+            Files.delete(expired);
+        }
+    }
+
+    private Properties read(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    private void write(Path file, Properties properties) throws IOException {
+        Path tmpFile = directory.resolve("tmp-" + UUID.randomUUID());
+        try (OutputStream out = Files.newOutputStream(tmpFile)) {
+            properties.store(out, null);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // -------------------------------------------------------------------------
+
+    public static class Task {
+        public final String id;
+        public final Properties properties;
+
+        Task(String id, Properties properties) {
+            this.id = id;
+            this.properties = properties;
+        }
+
+        /**
+         * @return the properties of the task that were given to {@link #submit}, and the error of the previous attempt
+         */
+        public String get(String key) {
+            return properties.getProperty(key);
+        }
+    }
+}
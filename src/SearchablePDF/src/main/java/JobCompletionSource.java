@@ -0,0 +1,38 @@
+import java.util.List;
+
+/**
+ * Source of completion notifications of asynchronous Amazon Textract jobs, e.g. the SNS topic given as notification
+ * channel when starting the jobs, subscribed by an SQS queue.
+ */
+public interface JobCompletionSource {
+
+    /**
+     * Wait (for a bounded time) for completion notifications.
+     *
+     * @return the jobs that completed since the last call; possibly empty
+     */
+    public List<JobCompletion> receive() throws InterruptedException;
+
+    /**
+     * Remove the notification from the source, once it completed a job of the caller. Notifications that are not
+     * acknowledged may be received again later, e.g. by another process sharing the source.
+     */
+    public void acknowledge(JobCompletion completion);
+
+    public class JobCompletion {
+        public final String jobId;
+        public final String status;
+        // Identifies the notification to acknowledge, for sources that need it (e.g. the SQS receipt handle)
+        public final String receipt;
+
+        public JobCompletion(String jobId, String status) {
+            this(jobId, status, null);
+        }
+
+        public JobCompletion(String jobId, String status, String receipt) {
+            this.jobId = jobId;
+            this.status = status;
+            this.receipt = receipt;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+/**
+ * Appends the metrics to a file as JSON, one object per line and per export ("JSON lines"), so that the file keeps the
+ * history of the run.
+ *
+ * Latencies are in milliseconds: mean, estimated quantiles (p50, p95, p99) and max since the start of the run. The
+ * rate of pages is given since the previous export.
+ */
+public class JsonMetricsExporter implements MetricsExporter {
+
+    private final Path file;
+    private Metrics.Snapshot previous = null;
+
+    public JsonMetricsExporter(String file) {
+        this.file = Paths.get(file);
+    }
+
+    @Override
+    public void export(Metrics.Snapshot snapshot) throws IOException {
+        String json = format(snapshot, previous) + "\n";
+        Files.write(file, json.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        previous = snapshot;
+    }
+
+    static String format(Metrics.Snapshot snapshot, Metrics.Snapshot previous) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"time\":").append(snapshot.timeMillis)
+                .append(",\"uptime_seconds\":").append(decimal(snapshot.uptimeSeconds))
+                .append(",\"stages\":{");
+        String separator = "";
+        for (Metrics.StageSnapshot stage : snapshot.stages.values()) {
+            json.append(separator).append('"').append(stage.name).append("\":{")
+                    .append("\"count\":").append(stage.count)
+                    .append(",\"mean_ms\":").append(decimal(stage.meanMillis()))
+                    .append(",\"p50_ms\":").append(decimal(stage.quantileMillis(0.50)))
+                    .append(",\"p95_ms\":").append(decimal(stage.quantileMillis(0.95)))
+                    .append(",\"p99_ms\":").append(decimal(stage.quantileMillis(0.99)))
+                    .append(",\"max_ms\":").append(decimal(stage.maxNanos / 1e6))
+                    .append(",\"pages\":").append(stage.pages)
+                    .append(",\"pages_per_second\":").append(decimal(snapshot.pagesPerSecond(stage, previous)))
+                    .append(",\"bytes_in\":").append(stage.bytesIn)
+                    .append(",\"bytes_out\":").append(stage.bytesOut)
+                    .append('}');
+            separator = ",";
+        }
+        json.append("},\"queues\":{");
+        separator = "";
+        for (String queue : snapshot.queueDepths.keySet()) {
+            json.append(separator).append('"').append(queue).append("\":").append(snapshot.queueDepths.get(queue));
+            separator = ",";
+        }
+        return json.append("}}").toString();
+    }
+
+    private static String decimal(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
@@ -0,0 +1,33 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process stand-in of the notification channel, e.g. for tests or a local Textract stand-in. Notifications are
+ * received once, acknowledged or not.
+ */
+public class LocalJobCompletionQueue implements JobCompletionSource {
+
+    private final BlockingQueue<JobCompletion> queue = new LinkedBlockingQueue<>();
+
+    public void publish(String jobId, String status) {
+        queue.add(new JobCompletion(jobId, status));
+    }
+
+    @Override
+    public List<JobCompletion> receive() throws InterruptedException {
+        List<JobCompletion> completions = new ArrayList<>();
+        JobCompletion first = queue.poll(1, TimeUnit.SECONDS);
+        if (first != null) {
+            completions.add(first);
+            queue.drainTo(completions);
+        }
+        return completions;
+    }
+
+    @Override
+    public void acknowledge(JobCompletion completion) {
+    }
+}
@@ -0,0 +1,34 @@
+import java.util.Locale;
+
+/**
+ * Prints the metrics as structured (key=value) log lines: one per stage that ran since the previous export, and one
+ * with the depth of the queues.
+ */
+public class LogMetricsExporter implements MetricsExporter {
+
+    private Metrics.Snapshot previous = null;
+
+    @Override
+    public void export(Metrics.Snapshot snapshot) {
+        for (Metrics.StageSnapshot stage : snapshot.stages.values()) {
+            Metrics.StageSnapshot previousStage = previous != null ? previous.stages.get(stage.name) : null;
+            long previousCount = previousStage != null ? previousStage.count : 0;
+            long previousPages = previousStage != null ? previousStage.pages : 0;
+            if (stage.count == previousCount && stage.pages == previousPages) {
+                continue;
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "metrics stage=%s count=%d mean_ms=%.1f p50_ms=%.1f p95_ms=%.1f p99_ms=%.1f max_ms=%.1f"
+                            + " pages=%d pages_per_second=%.2f bytes_in=%d bytes_out=%d",
+                    stage.name, stage.count, stage.meanMillis(), stage.quantileMillis(0.50),
+                    stage.quantileMillis(0.95), stage.quantileMillis(0.99), stage.maxNanos / 1e6, stage.pages,
+                    snapshot.pagesPerSecond(stage, previous), stage.bytesIn, stage.bytesOut));
+        }
+        if (!snapshot.queueDepths.isEmpty()) {
+            StringBuilder line = new StringBuilder("metrics queues");
+            snapshot.queueDepths.forEach((queue, depth) -> line.append(' ').append(queue).append('=').append(depth));
+            System.out.println(line);
+        }
+        previous = snapshot;
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Timing and throughput of the stages of a run (e.g. render, encode, ocr, assemble, save, upload), shared by all
+ * processors.
+ *
+ * Each stage has a latency histogram, and counts the pages and bytes in and out that went through it. Queues register
+ * a supplier of their depth. Recording is cheap (no locks), so stages are always recorded; a {@link Snapshot} of it
+ * all is handed periodically to the {@link MetricsExporter}s, and once more at the end of the run.
+ *
+ * The default instance exports with the exporters enabled by these (optional) envars:
+ * <ul>
+ * <li>METRICS_PROMETHEUS_FILE: file rewritten in the Prometheus text format (e.g. for the node exporter textfile
+ * collector)</li>
+ * <li>METRICS_JSON_FILE: file a JSON object is appended to, per line</li>
+ * <li>METRICS_LOG: "true" to print a log line per stage</li>
+ * <li>METRICS_INTERVAL_SECONDS: how often to export (default: 10)</li>
+ * </ul>
+ */
+public class Metrics {
+
+    // Upper bounds of the latency histogram buckets, in milliseconds (the last bucket has no bound)
+    static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000,
+            60000, 120000, 300000};
+
+    private static Metrics defaultInstance;
+
+    private final long startMillis = System.currentTimeMillis();
+    private final Map<String, Stage> stages = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> queues = new ConcurrentHashMap<>();
+
+    private final List<MetricsExporter> exporters = new ArrayList<>();
+    private ScheduledExecutorService scheduler;
+
+    public static synchronized Metrics getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new Metrics();
+            Optional.ofNullable(System.getenv("METRICS_PROMETHEUS_FILE"))
+                    .ifPresent(file -> defaultInstance.addExporter(new PrometheusMetricsExporter(file)));
+            Optional.ofNullable(System.getenv("METRICS_JSON_FILE"))
+                    .ifPresent(file -> defaultInstance.addExporter(new JsonMetricsExporter(file)));
+            if (Optional.ofNullable(System.getenv("METRICS_LOG")).map(Boolean::parseBoolean).orElse(false)) {
+                defaultInstance.addExporter(new LogMetricsExporter());
+            }
+            defaultInstance.start(Optional.ofNullable(System.getenv("METRICS_INTERVAL_SECONDS"))
+                    .map(Long::parseLong).orElse(10L));
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @return the stage with this name, created on first use
+     */
+    public Stage stage(String name) {
+        return stages.computeIfAbsent(name, Stage::new);
+    }
+
+    /**
+     * Report the depth of a queue, e.g. the tasks waiting for a worker pool; replaces any queue with the same name.
+     */
+    public void queue(String name, LongSupplier depth) {
+        queues.put(name, depth);
+    }
+
+    public synchronized void addExporter(MetricsExporter exporter) {
+        exporters.add(exporter);
+    }
+
+    /**
+     * Export every intervalSeconds, and once more when the JVM exits. Does nothing without exporters.
+     */
+    public synchronized void start(long intervalSeconds) {
+        if (exporters.isEmpty() || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::export, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::export, "metrics-export-final"));
+    }
+
+    /**
+     * Export now, e.g. at the end of an invocation that may be frozen afterwards (AWS Lambda).
+     */
+    public void export() {
+        List<MetricsExporter> currentExporters;
+        synchronized (this) {
+            currentExporters = new ArrayList<>(exporters);
+        }
+        if (currentExporters.isEmpty()) {
+            return;
+        }
+        Snapshot snapshot = snapshot();
+        for (MetricsExporter exporter : currentExporters) {
+            try {
+                exporter.export(snapshot);
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not export metrics with " + exporter.getClass().getSimpleName() + ": " + e);
+            }
+        }
+    }
+
+    public Snapshot snapshot() {
+        long timeMillis = System.currentTimeMillis();
+        SortedMap<String, StageSnapshot> stageSnapshots = new TreeMap<>();
+        stages.forEach((name, stage) -> stageSnapshots.put(name, stage.snapshot()));
+        SortedMap<String, Long> queueDepths = new TreeMap<>();
+        queues.forEach((name, depth) -> queueDepths.put(name, depth.getAsLong()));
+        return new Snapshot(timeMillis, (timeMillis - startMillis) / 1000.0, stageSnapshots, queueDepths);
+    }
+
+    // -------------------------------------------------------------------------
+
+    /**
+     * Latency histogram, and pages and bytes counters, of a stage.
+     */
+    public static class Stage {
+        final String name;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder pages = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Time a run of the stage, until the timer is closed: {@code try (Metrics.Timer timer = stage.time()) {...}}
+         */
+        public Timer time() {
+            return new Timer(this);
+        }
+
+        public void record(long nanos) {
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MILLIS.length && nanos > BUCKET_BOUNDS_MILLIS[bucket] * 1000000) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            sumNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public void addPages(long count) {
+            pages.add(count);
+        }
+
+        public void addBytesIn(long count) {
+            bytesIn.add(count);
+        }
+
+        public void addBytesOut(long count) {
+            bytesOut.add(count);
+        }
+
+        StageSnapshot snapshot() {
+            long[] bucketCounts = new long[buckets.length()];
+            for (int i = 0; i < bucketCounts.length; i++) {
+                bucketCounts[i] = buckets.get(i);
+            }
+            return new StageSnapshot(name, bucketCounts, count.sum(), sumNanos.sum(), maxNanos.get(), pages.sum(),
+                    bytesIn.sum(), bytesOut.sum());
+        }
+    }
+
+    public static class Timer implements AutoCloseable {
+        private final Stage stage;
+        private final long startNanos = System.nanoTime();
+
+        Timer(Stage stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public void close() {
+            stage.record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Values of all stages and queues at a point in time.
+     */
+    public static class Snapshot {
+        public final long timeMillis;
+        public final double uptimeSeconds;
+        public final SortedMap<String, StageSnapshot> stages;
+        public final SortedMap<String, Long> queueDepths;
+
+        Snapshot(long timeMillis, double uptimeSeconds, SortedMap<String, StageSnapshot> stages,
+                 SortedMap<String, Long> queueDepths) {
+            this.timeMillis = timeMillis;
+            this.uptimeSeconds = uptimeSeconds;
+            this.stages = stages;
+            this.queueDepths = queueDepths;
+        }
+
+        /**
+         * @return pages per second through the stage since the previous snapshot, or since the start if null
+         */
+        public double pagesPerSecond(StageSnapshot stage, Snapshot previous) {
+            StageSnapshot previousStage = previous != null ? previous.stages.get(stage.name) : null;
+            double seconds = uptimeSeconds - (previous != null ? previous.uptimeSeconds : 0);
+            long pages = stage.pages - (previousStage != null ? previousStage.pages : 0);
+            return seconds > 0 ? pages / seconds : 0;
+        }
+    }
+
+    public static class StageSnapshot {
+        public final String name;
+        // Count of runs per bucket of BUCKET_BOUNDS_MILLIS (not cumulative); the last one is past the last bound
+        public final long[] buckets;
+        public final long count;
+        public final long sumNanos;
+        public final long maxNanos;
+        public final long pages;
+        public final long bytesIn;
+        public final long bytesOut;
+
+        StageSnapshot(String name, long[] buckets, long count, long sumNanos, long maxNanos, long pages, long bytesIn,
+                      long bytesOut) {
+            this.name = name;
+            this.buckets = buckets;
+            this.count = count;
+            this.sumNanos = sumNanos;
+            this.maxNanos = maxNanos;
+            this.pages = pages;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+        }
+
+        /**
+         * @return estimate of the latency quantile (e.g. 0.95), interpolated within its histogram bucket
+         */
+        public double quantileMillis(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            double maxMillis = maxNanos / 1e6;
+            double rank = quantile * count;
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] > 0 && seen + buckets[i] >= rank) {
+                    double lower = i == 0 ? 0 : BUCKET_BOUNDS_MILLIS[i - 1];
+                    double upper = i < BUCKET_BOUNDS_MILLIS.length ? BUCKET_BOUNDS_MILLIS[i] : maxMillis;
+                    return Math.min(maxMillis, lower + (upper - lower) * (rank - seen) / buckets[i]);
+                }
+                seen += buckets[i];
+            }
+            return maxMillis;
+        }
+
+        public double meanMillis() {
+            return count == 0 ? 0 : sumNanos / 1e6 / count;
+        }
+    }
+}
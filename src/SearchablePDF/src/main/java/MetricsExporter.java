@@ -0,0 +1,11 @@
+import java.io.IOException;
+
+/**
+ * Publishes the {@link Metrics} of a run, e.g. to a file scraped by a monitoring system.
+ *
+ * Called periodically from a single thread, with a snapshot of the cumulative values since the start of the run.
+ */
+public interface MetricsExporter {
+
+    void export(Metrics.Snapshot snapshot) throws IOException;
+}
@@ -0,0 +1,47 @@
+import com.amazon.textract.pdf.TextLine;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Non-blocking OCR: each call returns at once, and its lines complete later, so that callers can keep many pages in
+ * flight without a thread waiting on each one.
+ *
+ * The lines may complete on a thread of the engine (e.g. of the AWS SDK): callers with more than a little work to do
+ * on them should continue on a pool of their own (e.g. with thenApplyAsync).
+ */
+public interface OcrEngine {
+
+    /**
+     * @param imageBytes bytes of a JPEG or PNG image; the buffer position is not modified
+     */
+    CompletableFuture<List<TextLine>> detectText(ByteBuffer imageBytes);
+
+    /**
+     * Lines of a single page document (JPEG, PNG or PDF) in S3.
+     */
+    CompletableFuture<List<TextLine>> detectText(String bucketName, String documentName);
+
+    /**
+     * @return the {@link ReplayOcrEngine} if OCR_REPLAY_DIR is set, else a {@link TextractOcrEngine} on the clients
+     */
+    static OcrEngine fromEnvironment(AwsClients clients) {
+        OcrEngine replay = ReplayOcrEngine.getDefault();
+        return replay != null ? replay : new TextractOcrEngine(clients, TextractRateLimiter.getDefault());
+    }
+
+    /**
+     * Wait for the lines, for callers that block anyway; the failure of the OCR is rethrown as is.
+     */
+    static List<TextLine> join(CompletableFuture<List<TextLine>> lines) {
+        try {
+            return lines.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
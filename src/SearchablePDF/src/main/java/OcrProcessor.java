@@ -1,7 +1,14 @@
+import com.amazon.textract.pdf.PDFDocument;
 import java.io.IOException;
 
 public interface OcrProcessor {
 
   public void run(String documentName, String outputDocumentName) throws IOException;
 
+  /**
+   * Generate the searchable pdf of the document without saving it, e.g. to stream it to where it goes; the caller
+   * saves and closes it.
+   */
+  public PDFDocument generate(String documentName) throws IOException;
+
 }
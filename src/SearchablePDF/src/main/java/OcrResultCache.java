@@ -0,0 +1,278 @@
+import com.amazon.textract.pdf.TextLine;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of OCR results, keyed by the SHA-256 of the exact image bytes sent to Textract.
+ *
+ * Each entry is a small binary file holding the lines of one image. The total size of the cache is bounded: when it
+ * grows past maxBytes, the least recently used entries are deleted. The last access time is kept as the file
+ * modification time, so the LRU order survives restarts. On start, entries past maxBytes (e.g. after it was lowered)
+ * are deleted, as are the temporary files of writes cut short by a crash.
+ *
+ * The default instance is enabled with the envar OCR_CACHE_DIR; its size is OCR_CACHE_MAX_MB (default: 1024).
+ */
+public class OcrResultCache {
+
+    private static final int MAGIC = 0x4f435231; // "OCR1"
+    private static final String EXTENSION = ".ocr";
+    private static final String TMP_EXTENSION = ".tmp";
+
+    // Temporary files older than this are left over by a crash; younger ones may be written by another process
+    private static final long STALE_TMP_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static OcrResultCache defaultInstance;
+    private static boolean defaultInstanceResolved;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    // Entry key -> file size, in access order
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public OcrResultCache(Path directory, long maxBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+
+        List<Path> files;
+        List<Path> tmpFiles;
+        try (Stream<Path> paths = Files.list(directory)) {
+            Map<Boolean, List<Path>> filesByType = paths
+                    .filter(p -> p.getFileName().toString().endsWith(EXTENSION)
+                            || p.getFileName().toString().endsWith(TMP_EXTENSION))
+                    .collect(Collectors.partitioningBy(p -> p.getFileName().toString().endsWith(EXTENSION)));
+            files = filesByType.get(true);
+            tmpFiles = filesByType.get(false);
+        }
+        files.sort(Comparator.comparing(OcrResultCache::lastModified));
+        for (Path file : files) {
+            String fileName = file.getFileName().toString();
+            long size = Files.size(file);
+            entries.put(fileName.substring(0, fileName.length() - EXTENSION.length()), size);
+            totalBytes += size;
+        }
+
+        long staleMillis = System.currentTimeMillis() - STALE_TMP_MILLIS;
+        for (Path tmpFile : tmpFiles) {
+            if (lastModified(tmpFile).toMillis() < staleMillis) {
+                Files.deleteIfExists(tmpFile);
+            }
+        }
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    /**
+     * @return the process-wide cache configured from the environment, or null if caching is disabled
+     */
+    public static synchronized OcrResultCache getDefault() {
+        if (!defaultInstanceResolved) {
+            Optional<String> directory = Optional.ofNullable(System.getenv("OCR_CACHE_DIR"));
+            long maxMegabytes = Optional.ofNullable(System.getenv("OCR_CACHE_MAX_MB")).map(Long::parseLong).orElse(1024L);
+            if (directory.isPresent()) {
+                try {
+                    defaultInstance = new OcrResultCache(Paths.get(directory.get()), maxMegabytes * 1024 * 1024);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            defaultInstanceResolved = true;
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @return engine returning the cached lines of an image, or else running the given engine and caching its result;
+     * documents in S3 are not cached, as their bytes are not known
+     */
+    public OcrEngine wrap(OcrEngine engine) {
+        return new OcrEngine() {
+            @Override
+            public CompletableFuture<List<TextLine>> detectText(ByteBuffer imageBytes) {
+                String key = key(imageBytes);
+
+                List<TextLine> lines = read(key);
+                if (lines != null) {
+                    hits.incrementAndGet();
+                    return CompletableFuture.completedFuture(lines);
+                }
+
+                misses.incrementAndGet();
+                return engine.detectText(imageBytes).thenApply(detected -> {
+                    write(key, detected);
+                    return detected;
+                });
+            }
+
+            @Override
+            public CompletableFuture<List<TextLine>> detectText(String bucketName, String documentName) {
+                return engine.detectText(bucketName, documentName);
+            }
+        };
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (this) {
+            return "OCR cache " + directory + ": hits=" + hits + " misses=" + misses + " evictions=" + evictions
+                    + " entries=" + entries.size() + " bytes=" + totalBytes;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    static String key(ByteBuffer imageBytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(imageBytes.duplicate());
+            byte[] hash = digest.digest();
+            char[] hex = new char[2 * hash.length];
+            for (int i = 0; i < hash.length; i++) {
+                hex[2 * i] = Character.forDigit((hash[i] >> 4) & 0xf, 16);
+                hex[2 * i + 1] = Character.forDigit(hash[i] & 0xf, 16);
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return keys of the entries, least recently used first
+     */
+    synchronized List<String> keys() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * @return the lines of the entry, or null if there is none
+     */
+    List<TextLine> read(String key) {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                return null;
+            }
+        }
+
+        Path file = entryFile(key);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an OCR cache entry: " + file);
+            }
+            int count = in.readInt();
+            List<TextLine> lines = new ArrayList<TextLine>(count);
+            for (int i = 0; i < count; i++) {
+                float left = in.readFloat();
+                float top = in.readFloat();
+                float width = in.readFloat();
+                float height = in.readFloat();
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                lines.add(new TextLine(left, top, width, height, new String(text, StandardCharsets.UTF_8)));
+            }
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return lines;
+        } catch (IOException e) {
+            //Unreadable or concurrently evicted entry: drop it and treat it as a miss
+            System.out.println("Ignoring OCR cache entry " + key + ": " + e.getMessage());
+            remove(key);
+            return null;
+        }
+    }
+
+    private void write(String key, List<TextLine> lines) {
+        Path file = entryFile(key);
+        try {
+            Path tmpFile = Files.createTempFile(directory, key, TMP_EXTENSION);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(lines.size());
+                for (TextLine line : lines) {
+                    //Textract returns float geometry, so storing floats is lossless
+                    out.writeFloat((float) line.left);
+                    out.writeFloat((float) line.top);
+                    out.writeFloat((float) line.width);
+                    out.writeFloat((float) line.height);
+                    byte[] text = line.text.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(text.length);
+                    out.write(text);
+                }
+            }
+            Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            long size = Files.size(file);
+            synchronized (this) {
+                Long previousSize = entries.put(key, size);
+                totalBytes += size - (previousSize == null ? 0 : previousSize);
+                evict();
+            }
+        } catch (IOException e) {
+            //The cache is best effort; a failed write only costs a future miss
+            System.out.println("Could not write OCR cache entry " + key + ": " + e.getMessage());
+        }
+    }
+
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            Files.deleteIfExists(entryFile(entry.getKey()));
+            totalBytes -= entry.getValue();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        try {
+            Files.deleteIfExists(entryFile(key));
+        } catch (IOException e) {
+            //Ignore; it will be overwritten by the next write of this key
+        }
+    }
+
+    private Path entryFile(String key) {
+        return directory.resolve(key + EXTENSION);
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+}
@@ -0,0 +1,397 @@
+import com.amazon.textract.pdf.ImageType;
+import com.amazon.textract.pdf.OutputProfile;
+import com.amazon.textract.pdf.PDFDocument;
+import com.amazon.textract.pdf.PageLines;
+import com.amazon.textract.pdf.TextLayerDetector;
+import com.amazon.textract.pdf.TextLine;
+import com.amazonaws.services.textract.model.ImageTooLargeException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.tools.imageio.ImageIOUtil;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Staged page pipeline used to turn a local pdf into a searchable pdf.
+ *
+ * Pages are rendered, encoded and sent to OCR on separate worker pools, so that the Textract round trip of a page
+ * overlaps the rendering and encoding of the next ones. With an {@link OcrEngine}, pages wait for their OCR without
+ * holding a thread, and the OCR pool is not used. Pages are added to the output document on the caller thread,
+ * strictly in page order. At most {@code maxPagesInFlight} pages are held in memory at any time.
+ *
+ * Each page is JPEG-encoded once: the same bytes are sent to OCR and embedded in the output document. Except for
+ * bilevel pages (see {@link OutputProfile}): those are sent to OCR in gray, and embedded thresholded, in CCITT G4.
+ *
+ * Born-digital pages, which already have a text layer (see {@link TextLayerDetector}), skip rendering and OCR: they are
+ * copied to the output document as they are.
+ *
+ * Each page is rendered at the resolution picked by the {@link RenderResolutionPolicy}, and scaled down when its image
+ * is too large for the OCR.
+ *
+ * PDFBox documents are not thread-safe, hence every concurrent render works on its own copy of the input document.
+ *
+ * The stages (render, encode, ocr, assemble, copy) and the queues of the worker pools are recorded in {@link Metrics}.
+ */
+public class PagePipeline implements Closeable {
+
+    private static final int CPUS = Runtime.getRuntime().availableProcessors();
+    private static final float JPEG_QUALITY = 0.75f;
+
+    private final int maxPagesInFlight;
+    private final TextLayerDetector textLayerDetector;
+    private final RenderResolutionPolicy resolutionPolicy;
+
+    private final ThreadPoolExecutor renderPool;
+    private final ThreadPoolExecutor encodePool;
+    private final ThreadPoolExecutor ocrPool;
+
+    private final Metrics.Stage renderStage;
+    private final Metrics.Stage encodeStage;
+    private final Metrics.Stage ocrStage;
+    private final Metrics.Stage assembleStage;
+    private final Metrics.Stage copyStage;
+    private final AtomicInteger pagesInFlight = new AtomicInteger();
+    private final AtomicInteger ocrInFlight = new AtomicInteger();
+
+    public PagePipeline(int renderThreads, int encodeThreads, int ocrThreads, int maxPagesInFlight) {
+        this(renderThreads, encodeThreads, ocrThreads, maxPagesInFlight, TextLayerDetector.fromEnvironment(),
+                RenderResolutionPolicy.fromEnvironment(), Metrics.getDefault());
+    }
+
+    public PagePipeline(int renderThreads, int encodeThreads, int ocrThreads, int maxPagesInFlight,
+                        TextLayerDetector textLayerDetector, RenderResolutionPolicy resolutionPolicy, Metrics metrics) {
+        if (renderThreads < 1 || encodeThreads < 1 || ocrThreads < 1 || maxPagesInFlight < 1) {
+            throw new IllegalArgumentException("Pipeline thread counts and maxPagesInFlight must be positive");
+        }
+        this.maxPagesInFlight = maxPagesInFlight;
+        this.textLayerDetector = textLayerDetector;
+        this.resolutionPolicy = resolutionPolicy;
+        this.renderPool = newFixedThreadPool(renderThreads, "page-render");
+        this.encodePool = newFixedThreadPool(encodeThreads, "page-encode");
+        this.ocrPool = newFixedThreadPool(ocrThreads, "page-ocr");
+
+        this.renderStage = metrics.stage("render");
+        this.encodeStage = metrics.stage("encode");
+        this.ocrStage = metrics.stage("ocr");
+        this.assembleStage = metrics.stage("assemble");
+        this.copyStage = metrics.stage("copy");
+        metrics.queue("pipeline_render", () -> renderPool.getQueue().size());
+        metrics.queue("pipeline_encode", () -> encodePool.getQueue().size());
+        metrics.queue("pipeline_ocr", () -> ocrPool.getQueue().size());
+        metrics.queue("pipeline_pages_in_flight", pagesInFlight::get);
+        metrics.queue("pipeline_ocr_in_flight", ocrInFlight::get);
+    }
+
+    /**
+     * Pipeline sized from the envars PIPELINE_RENDER_THREADS, PIPELINE_ENCODE_THREADS, PIPELINE_OCR_THREADS and
+     * PIPELINE_MAX_PAGES_IN_FLIGHT, falling back to defaults derived from the number of cpus.
+     */
+    public static PagePipeline fromEnvironment() {
+        int renderThreads = intFromEnv("PIPELINE_RENDER_THREADS", CPUS);
+        int encodeThreads = intFromEnv("PIPELINE_ENCODE_THREADS", CPUS);
+        int ocrThreads = intFromEnv("PIPELINE_OCR_THREADS", 8);
+        int maxPagesInFlight = intFromEnv("PIPELINE_MAX_PAGES_IN_FLIGHT", 2 * CPUS);
+        return new PagePipeline(renderThreads, encodeThreads, ocrThreads, maxPagesInFlight);
+    }
+
+    /**
+     * Render every page of the input pdf, extract its text with the given OCR function and add it to pdfDocument.
+     * Pages with a text layer are copied instead.
+     *
+     * @param inputFile   local pdf to process
+     * @param pdfDocument document the pages are added to, in page order
+     * @param ocr         OCR function; called concurrently from the OCR pool, so it must be thread-safe
+     */
+    public void run(File inputFile, PDFDocument pdfDocument, Function<ByteBuffer, List<TextLine>> ocr) throws IOException {
+        run(inputFile, 0, Integer.MAX_VALUE, pdfDocument, ocr);
+    }
+
+    /**
+     * Same as {@link #run(File, PDFDocument, Function)}, for the pages from firstPage (included) to endPage (excluded)
+     * only, e.g. a shard of a large document; endPage past the last page stops at the last page.
+     */
+    public void run(File inputFile, int firstPage, int endPage, PDFDocument pdfDocument,
+                    Function<ByteBuffer, List<TextLine>> ocr) throws IOException {
+        runPages(inputFile, firstPage, endPage, pdfDocument, imageBytes -> CompletableFuture.supplyAsync(
+                () -> ocr.apply(imageBytes), ocrPool));
+    }
+
+    /**
+     * Same as {@link #run(File, int, int, PDFDocument, Function)}, extracting the text with the given engine.
+     */
+    public void run(File inputFile, int firstPage, int endPage, PDFDocument pdfDocument, OcrEngine ocr)
+            throws IOException {
+        runPages(inputFile, firstPage, endPage, pdfDocument, ocr::detectText);
+    }
+
+    private void runPages(File inputFile, int firstPage, int endPage, PDFDocument pdfDocument, AsyncOcr ocr)
+            throws IOException {
+
+        //The input document is kept open for the pages copied from it, until pdfDocument is closed
+        PDDocument inputDocument = PDDocument.load(inputFile, PDFDocument.defaultMemoryUsageSetting());
+        int endPageInDocument = Math.min(endPage, inputDocument.getNumberOfPages());
+        boolean[] hasTextLayer;
+        try {
+            if (firstPage < 0 || firstPage > endPageInDocument) {
+                throw new IllegalArgumentException("First page " + firstPage + " out of the "
+                        + inputDocument.getNumberOfPages() + " pages of " + inputFile);
+            }
+            hasTextLayer = textLayerDetector.detect(inputDocument, firstPage, endPageInDocument);
+        } catch (IOException | RuntimeException e) {
+            inputDocument.close();
+            throw e;
+        }
+        boolean anyPageCopied = false;
+
+        //Copies of the input document are opened on demand, so there are never more than render threads
+        List<PDDocument> renderDocuments = Collections.synchronizedList(new ArrayList<>());
+        BlockingQueue<PDFRenderer> renderers = new LinkedBlockingQueue<>();
+
+        Deque<CompletableFuture<Page>> window = new ArrayDeque<>(maxPagesInFlight);
+        try {
+            for (int page = firstPage; page < endPageInDocument; ++page) {
+                if (window.size() == maxPagesInFlight) {
+                    anyPageCopied |= assemble(window.removeFirst(), pdfDocument, inputDocument);
+                }
+                pagesInFlight.incrementAndGet();
+                if (hasTextLayer[page]) {
+                    window.addLast(CompletableFuture.completedFuture(new Page(page, true)));
+                } else {
+                    float dpi = resolutionPolicy.dpiFor(inputDocument.getPage(page).getCropBox());
+                    window.addLast(submit(page, dpi, pdfDocument.getOutputProfile(), inputFile, renderDocuments,
+                            renderers, ocr));
+                }
+            }
+            while (!window.isEmpty()) {
+                anyPageCopied |= assemble(window.removeFirst(), pdfDocument, inputDocument);
+            }
+        } finally {
+            //On failure, let the pages still in flight settle before closing the documents they render from
+            for (CompletableFuture<Page> pending : window) {
+                pending.handle((page, e) -> null).join();
+                pagesInFlight.decrementAndGet();
+            }
+            synchronized (renderDocuments) {
+                for (PDDocument document : renderDocuments) {
+                    document.close();
+                }
+            }
+            //Once a page was copied, the input document is closed along with pdfDocument
+            if (!anyPageCopied) {
+                inputDocument.close();
+            }
+        }
+    }
+
+    private CompletableFuture<Page> submit(int pageIndex, float dpi, OutputProfile outputProfile, File inputFile,
+                                           List<PDDocument> renderDocuments, BlockingQueue<PDFRenderer> renderers,
+                                           AsyncOcr ocr) {
+        return CompletableFuture
+                .supplyAsync(() -> {
+                    //Render image
+                    try (Metrics.Timer timer = renderStage.time()) {
+                        PDFRenderer pdfRenderer = renderers.poll();
+                        if (pdfRenderer == null) {
+                            PDDocument document = PDDocument.load(inputFile);
+                            renderDocuments.add(document);
+                            pdfRenderer = new PDFRenderer(document);
+                        }
+                        Page page = new Page(pageIndex, false);
+                        page.dpi = dpi;
+                        page.image = pdfRenderer.renderImageWithDPI(pageIndex, page.dpi, org.apache.pdfbox.rendering.ImageType.RGB);
+                        renderers.add(pdfRenderer);
+                        renderStage.addPages(1);
+                        return page;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, renderPool)
+                .thenApplyAsync(page -> {
+                    //Get image bytes, scaled down while too large for the OCR
+                    try (Metrics.Timer timer = encodeStage.time()) {
+                        page.profile = outputProfile.resolve(page.image);
+                        if (page.profile != OutputProfile.COLOR) {
+                            page.image = OutputProfile.GRAYSCALE.convert(page.image);
+                        }
+                        encode(page);
+                        while (!resolutionPolicy.fits(page.imageBytes.length) && shrink(page)) {
+                            encode(page);
+                        }
+                        encodeStage.addPages(1);
+                        encodeStage.addBytesOut(page.imageBytes.length);
+                        return page;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, encodePool)
+                .thenCompose(page -> extractText(page, ocr))
+                .thenApplyAsync(page -> {
+                    //The encoded bytes are embedded as they are, so the image is not needed anymore; but for bilevel
+                    //pages, where it is replaced with its (much smaller) thresholded version
+                    if (page.profile == OutputProfile.BILEVEL) {
+                        page.image = OutputProfile.BILEVEL.convert(page.image);
+                        page.imageBytes = null;
+                    } else {
+                        page.image = null;
+                    }
+                    return page;
+                }, encodePool);
+    }
+
+    /**
+     * Extract the text of the page; if Textract still finds the image too large, retry at a lower resolution.
+     */
+    private CompletableFuture<Page> extractText(Page page, AsyncOcr ocr) {
+        Metrics.Timer timer = ocrStage.time();
+        ocrInFlight.incrementAndGet();
+        CompletableFuture<List<TextLine>> lines;
+        try {
+            lines = ocr.detectText(ByteBuffer.wrap(page.imageBytes));
+        } catch (RuntimeException e) {
+            lines = CompletableFuture.failedFuture(e);
+        }
+        return lines.handle((pageLines, error) -> {
+            timer.close();
+            ocrInFlight.decrementAndGet();
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause == null) {
+                ocrStage.addPages(1);
+                ocrStage.addBytesIn(page.imageBytes.length);
+                page.lines = pageLines;
+                return CompletableFuture.completedFuture(page);
+            }
+            if (!(cause instanceof ImageTooLargeException)) {
+                return CompletableFuture.<Page>failedFuture(cause);
+            }
+            return CompletableFuture
+                    .supplyAsync(() -> {
+                        if (!shrink(page)) {
+                            throw (ImageTooLargeException) cause;
+                        }
+                        try {
+                            encode(page);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return page;
+                    }, encodePool)
+                    .thenCompose(smallerPage -> extractText(smallerPage, ocr));
+        }).thenCompose(Function.identity());
+    }
+
+    private static void encode(Page page) throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        //Same quality as JPEGFactory.createFromImage, which embedded the pages before they were encoded only once
+        ImageIOUtil.writeImage(page.image, "jpeg", byteArrayOutputStream, Math.round(page.dpi), JPEG_QUALITY);
+        page.imageBytes = byteArrayOutputStream.toByteArray();
+    }
+
+    /**
+     * @return false if the page image cannot be made smaller
+     */
+    private boolean shrink(Page page) {
+        BufferedImage smallerImage = resolutionPolicy.shrink(page.image, page.dpi, page.imageBytes.length);
+        if (smallerImage == null) {
+            return false;
+        }
+        page.dpi = resolutionPolicy.shrunkDpi(page.dpi, page.image.getWidth(), smallerImage.getWidth());
+        page.image = smallerImage;
+        System.out.println("Scaled down page index " + page.index + " to " + Math.round(page.dpi) + " dpi");
+        return true;
+    }
+
+    /**
+     * @return true if the page was copied from the input document
+     */
+    private boolean assemble(CompletableFuture<Page> pending, PDFDocument pdfDocument, PDDocument inputDocument)
+            throws IOException {
+        Page page;
+        try {
+            page = pending.join();
+        } catch (CompletionException e) {
+            pagesInFlight.decrementAndGet();
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+
+        pagesInFlight.decrementAndGet();
+
+        if (page.hasTextLayer) {
+            //Copy born-digital page as is
+            try (Metrics.Timer timer = copyStage.time()) {
+                pdfDocument.importPage(inputDocument, page.index);
+            }
+            copyStage.addPages(1);
+            System.out.println("Copied page index (has a text layer): " + page.index);
+            return true;
+        }
+
+        //Add extracted text to pdf page, embedding the image bytes that were sent to the OCR, at the input page size
+        PDRectangle pageSize = PDFDocument.renderedSize(inputDocument.getPage(page.index));
+        try (Metrics.Timer timer = assembleStage.time()) {
+            if (page.profile == OutputProfile.BILEVEL) {
+                pdfDocument.addPage(page.image, ImageType.JPEG, PageLines.of(page.lines), pageSize);
+            } else {
+                pdfDocument.addPage(page.imageBytes, ImageType.JPEG, PageLines.of(page.lines), pageSize);
+            }
+        }
+        assembleStage.addPages(1);
+
+        System.out.println("Processed page index: " + page.index);
+        return false;
+    }
+
+    @Override
+    public void close() {
+        renderPool.shutdownNow();
+        encodePool.shutdownNow();
+        ocrPool.shutdownNow();
+    }
+
+    // -------------------------------------------------------------------------
+
+    private interface AsyncOcr {
+        CompletableFuture<List<TextLine>> detectText(ByteBuffer imageBytes);
+    }
+
+    private static class Page {
+        final int index;
+        final boolean hasTextLayer;
+        float dpi;
+        OutputProfile profile;
+        BufferedImage image;
+        byte[] imageBytes;
+        List<TextLine> lines;
+
+        Page(int index, boolean hasTextLayer) {
+            this.index = index;
+            this.hasTextLayer = hasTextLayer;
+        }
+    }
+
+    private static ThreadPoolExecutor newFixedThreadPool(int threads, String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private static int intFromEnv(String name, int defaultValue) {
+        return Optional.ofNullable(System.getenv(name)).map(Integer::parseInt).orElse(defaultValue);
+    }
+}
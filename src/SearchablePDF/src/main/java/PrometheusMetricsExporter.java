@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.function.ToLongFunction;
+
+/**
+ * Writes the metrics to a file in the Prometheus text exposition format, e.g. for the textfile collector of the node
+ * exporter. The file is replaced atomically, so it is never read half-written.
+ */
+public class PrometheusMetricsExporter implements MetricsExporter {
+
+    private static final String PREFIX = "searchable_pdf_";
+
+    private final Path file;
+
+    public PrometheusMetricsExporter(String file) {
+        this.file = Paths.get(file);
+    }
+
+    @Override
+    public void export(Metrics.Snapshot snapshot) throws IOException {
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmpFile, format(snapshot).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String format(Metrics.Snapshot snapshot) {
+        StringBuilder text = new StringBuilder();
+
+        text.append("# HELP ").append(PREFIX).append("stage_duration_seconds Duration of the runs of a stage.\n");
+        text.append("# TYPE ").append(PREFIX).append("stage_duration_seconds histogram\n");
+        for (Metrics.StageSnapshot stage : snapshot.stages.values()) {
+            long cumulative = 0;
+            for (int i = 0; i < stage.buckets.length; i++) {
+                cumulative += stage.buckets[i];
+                String bound = i < Metrics.BUCKET_BOUNDS_MILLIS.length
+                        ? Double.toString(Metrics.BUCKET_BOUNDS_MILLIS[i] / 1000.0) : "+Inf";
+                text.append(PREFIX).append("stage_duration_seconds_bucket{stage=\"").append(stage.name)
+                        .append("\",le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            text.append(PREFIX).append("stage_duration_seconds_sum{stage=\"").append(stage.name).append("\"} ")
+                    .append(stage.sumNanos / 1e9).append('\n');
+            text.append(PREFIX).append("stage_duration_seconds_count{stage=\"").append(stage.name).append("\"} ")
+                    .append(stage.count).append('\n');
+        }
+
+        counter(text, snapshot, "stage_pages_total", "Pages that went through a stage.", stage -> stage.pages);
+        counter(text, snapshot, "stage_bytes_in_total", "Bytes read by a stage.", stage -> stage.bytesIn);
+        counter(text, snapshot, "stage_bytes_out_total", "Bytes written by a stage.", stage -> stage.bytesOut);
+
+        text.append("# HELP ").append(PREFIX).append("queue_depth Items waiting in a queue.\n");
+        text.append("# TYPE ").append(PREFIX).append("queue_depth gauge\n");
+        snapshot.queueDepths.forEach((queue, depth) -> text.append(PREFIX).append("queue_depth{queue=\"")
+                .append(queue).append("\"} ").append(depth).append('\n'));
+
+        text.append("# HELP ").append(PREFIX).append("uptime_seconds Time since the start of the run.\n");
+        text.append("# TYPE ").append(PREFIX).append("uptime_seconds gauge\n");
+        text.append(PREFIX).append("uptime_seconds ").append(snapshot.uptimeSeconds).append('\n');
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, Metrics.Snapshot snapshot, String name, String help,
+                                ToLongFunction<Metrics.StageSnapshot> value) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(" counter\n");
+        for (Metrics.StageSnapshot stage : snapshot.stages.values()) {
+            text.append(PREFIX).append(name).append("{stage=\"").append(stage.name).append("\"} ")
+                    .append(value.applyAsLong(stage)).append('\n');
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Optional;
+
+/**
+ * Picks the resolution each pdf page is rendered at for OCR.
+ *
+ * The resolution is maxDpi unless the page is large: then it is lowered so that the rendered image stays within a
+ * pixel budget and within the max image side accepted by Amazon Textract. Memory per page is thus bounded whatever
+ * the page format, and an A0 drawing is not rendered at the resolution of a letter page.
+ *
+ * When the encoded image is still too large for the synchronous Textract API (maxImageBytes), or Textract rejects it,
+ * the image is scaled down with {@link #shrink(BufferedImage, float, long)}, but never below minDpi.
+ *
+ * The default policy is configured from these (optional) envars:
+ * <ul>
+ * <li>RENDER_MAX_DPI (default: 300) and RENDER_MIN_DPI (default: 72)</li>
+ * <li>RENDER_MAX_MEGAPIXELS: pixel budget of a page (default: 16)</li>
+ * <li>RENDER_MAX_SIDE_PIXELS (default: 10000)</li>
+ * <li>TEXTRACT_MAX_IMAGE_MB: max encoded image size sent to Textract (default: 5)</li>
+ * </ul>
+ */
+public class RenderResolutionPolicy {
+
+    private static final float POINTS_PER_INCH = 72;
+
+    // Shrinking to the exact byte budget is a guess (jpeg size is not linear in the pixel count): aim a bit lower
+    private static final double SHRINK_MARGIN = 0.9;
+
+    private final float maxDpi;
+    private final float minDpi;
+    private final long maxPixels;
+    private final int maxSidePixels;
+    private final long maxImageBytes;
+
+    public RenderResolutionPolicy(float maxDpi, float minDpi, long maxPixels, int maxSidePixels, long maxImageBytes) {
+        if (minDpi <= 0 || maxDpi < minDpi) {
+            throw new IllegalArgumentException("Expected 0 < minDpi <= maxDpi; got: " + minDpi + ", " + maxDpi);
+        }
+        this.maxDpi = maxDpi;
+        this.minDpi = minDpi;
+        this.maxPixels = maxPixels;
+        this.maxSidePixels = maxSidePixels;
+        this.maxImageBytes = maxImageBytes;
+    }
+
+    public static RenderResolutionPolicy fromEnvironment() {
+        return new RenderResolutionPolicy(
+                Optional.ofNullable(System.getenv("RENDER_MAX_DPI")).map(Float::parseFloat).orElse(300f),
+                Optional.ofNullable(System.getenv("RENDER_MIN_DPI")).map(Float::parseFloat).orElse(72f),
+                Optional.ofNullable(System.getenv("RENDER_MAX_MEGAPIXELS")).map(Long::parseLong).orElse(16L) * 1000 * 1000,
+                Optional.ofNullable(System.getenv("RENDER_MAX_SIDE_PIXELS")).map(Integer::parseInt).orElse(10000),
+                Optional.ofNullable(System.getenv("TEXTRACT_MAX_IMAGE_MB")).map(Long::parseLong).orElse(5L) * 1024 * 1024);
+    }
+
+    /**
+     * @param pageBox box the page is rendered from (its crop box)
+     * @return resolution to render the page at
+     */
+    public float dpiFor(PDRectangle pageBox) {
+        float widthInches = pageBox.getWidth() / POINTS_PER_INCH;
+        float heightInches = pageBox.getHeight() / POINTS_PER_INCH;
+
+        double dpi = maxDpi;
+        if (widthInches > 0 && heightInches > 0) {
+            dpi = Math.min(dpi, Math.sqrt(maxPixels / (widthInches * heightInches)));
+            dpi = Math.min(dpi, maxSidePixels / Math.max(widthInches, heightInches));
+        }
+        return (float) Math.max(minDpi, dpi);
+    }
+
+    public boolean fits(long imageBytes) {
+        return imageBytes <= maxImageBytes;
+    }
+
+    /**
+     * Scale down an image rendered at dpi, e.g. because its encoded size is too large or Textract rejected it.
+     *
+     * @param imageBytes encoded size of the image, or 0 if unknown (then it is halved in area)
+     * @return the smaller image, of the same type as image; or null if it was already rendered at minDpi, or cannot be
+     * made any smaller
+     */
+    public BufferedImage shrink(BufferedImage image, float dpi, long imageBytes) {
+        double scale = imageBytes > maxImageBytes
+                ? Math.sqrt((double) maxImageBytes / imageBytes) * SHRINK_MARGIN
+                : Math.sqrt(0.5);
+        scale = Math.max(scale, minDpi / dpi);
+        if (scale >= 1) {
+            return null;
+        }
+
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        if (width == image.getWidth() && height == image.getHeight()) {
+            return null;
+        }
+        //Keep the type, e.g. so that a grayscale page is still embedded as grayscale
+        int type = image.getType() != BufferedImage.TYPE_CUSTOM ? image.getType() : BufferedImage.TYPE_INT_RGB;
+        BufferedImage smallerImage = new BufferedImage(width, height, type);
+        Graphics2D graphics = smallerImage.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return smallerImage;
+    }
+
+    /**
+     * @return resolution of the image shrunk from width to smallerWidth pixels, rendered at dpi; minDpi if the shrink
+     * was clamped to it, so that rounding the pixel sizes never leaves the image just above minDpi
+     */
+    public float shrunkDpi(float dpi, int width, int smallerWidth) {
+        if (smallerWidth <= Math.max(1, Math.round(width * minDpi / dpi))) {
+            return minDpi;
+        }
+        return dpi * smallerWidth / width;
+    }
+}
@@ -0,0 +1,115 @@
+import com.amazon.textract.pdf.TextLine;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline {@link OcrEngine} replaying the OCR results recorded in an {@link OcrResultCache} directory, after a set
+ * latency: e.g. to load test the processors without calling Amazon Textract, nor spending its quotas.
+ *
+ * An image recorded in the directory gets its own lines back. Any other image (or document in S3) gets the lines of
+ * one of the recorded images, picked from its hash, so that any input can be replayed; the same input always gets the
+ * same lines.
+ *
+ * The lines complete on a single timer thread, after latencyMillis plus or minus up to jitterMillis: any number of
+ * OCRs can be in flight, without a thread each. Recorded lines are read once, and then kept in memory.
+ *
+ * The default instance is enabled with the envar OCR_REPLAY_DIR (e.g. a former OCR_CACHE_DIR); its latency is
+ * OCR_REPLAY_LATENCY_MS (default: 1000) and its jitter OCR_REPLAY_JITTER_MS (default: 0).
+ */
+public class ReplayOcrEngine implements OcrEngine {
+
+    private static ReplayOcrEngine defaultInstance;
+    private static boolean defaultInstanceResolved;
+
+    // Completes the lines once their latency elapsed
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ocr-replay");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OcrResultCache recording;
+    private final List<String> recordedKeys;
+    private final Map<String, List<TextLine>> recordedLines = new ConcurrentHashMap<>();
+    private final long latencyMillis;
+    private final long jitterMillis;
+
+    public ReplayOcrEngine(Path directory, long latencyMillis, long jitterMillis) throws IOException {
+        if (latencyMillis < 0 || jitterMillis < 0 || jitterMillis > latencyMillis) {
+            throw new IllegalArgumentException("Replay latency must not be negative, and jitter at most the latency");
+        }
+        //Never evicts: nothing is written to it
+        this.recording = new OcrResultCache(directory, Long.MAX_VALUE);
+        this.recordedKeys = recording.keys();
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        if (recordedKeys.isEmpty()) {
+            throw new IllegalArgumentException("No OCR results recorded in " + directory);
+        }
+    }
+
+    /**
+     * @return the process-wide engine configured from the environment, or null if replay is disabled
+     */
+    public static synchronized ReplayOcrEngine getDefault() {
+        if (!defaultInstanceResolved) {
+            Optional<String> directory = Optional.ofNullable(System.getenv("OCR_REPLAY_DIR"));
+            long latencyMillis = Optional.ofNullable(System.getenv("OCR_REPLAY_LATENCY_MS")).map(Long::parseLong).orElse(1000L);
+            long jitterMillis = Optional.ofNullable(System.getenv("OCR_REPLAY_JITTER_MS")).map(Long::parseLong).orElse(0L);
+            if (directory.isPresent()) {
+                try {
+                    defaultInstance = new ReplayOcrEngine(Paths.get(directory.get()), latencyMillis, jitterMillis);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                System.out.println("Replaying OCR results from: " + directory.get());
+            }
+            defaultInstanceResolved = true;
+        }
+        return defaultInstance;
+    }
+
+    @Override
+    public CompletableFuture<List<TextLine>> detectText(ByteBuffer imageBytes) {
+        return replay(OcrResultCache.key(imageBytes));
+    }
+
+    @Override
+    public CompletableFuture<List<TextLine>> detectText(String bucketName, String documentName) {
+        return replay(OcrResultCache.key(ByteBuffer.wrap((bucketName + "/" + documentName).getBytes(StandardCharsets.UTF_8))));
+    }
+
+    // -------------------------------------------------------------------------
+
+    private CompletableFuture<List<TextLine>> replay(String key) {
+        CompletableFuture<List<TextLine>> result = new CompletableFuture<>();
+        List<TextLine> lines = recordedLines.computeIfAbsent(key, recording::read);
+        if (lines == null) {
+            lines = recordedLines.computeIfAbsent(recordedKeys.get(Math.floorMod(key.hashCode(), recordedKeys.size())),
+                    recording::read);
+        }
+        if (lines == null) {
+            result.completeExceptionally(new IllegalStateException("Recorded OCR result not readable anymore"));
+            return result;
+        }
+
+        List<TextLine> replayedLines = lines;
+        long delayMillis = latencyMillis + (jitterMillis > 0
+                ? ThreadLocalRandom.current().nextLong(-jitterMillis, jitterMillis + 1) : 0);
+        scheduler.schedule(() -> result.complete(replayedLines), delayMillis, TimeUnit.MILLISECONDS);
+        return result;
+    }
+}
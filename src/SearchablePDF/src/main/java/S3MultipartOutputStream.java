@@ -0,0 +1,244 @@
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Output stream that uploads what is written to it into an S3 object, part by part, while it is being written.
+ *
+ * Written bytes are buffered up to the part size; each full part is uploaded in the background (S3 multipart upload),
+ * with at most maxPartsInFlight parts uploading at a time. Peak memory is thus bounded by
+ * (maxPartsInFlight + 1) * partSize, whatever the size of the object. Objects smaller than a part are uploaded with a
+ * single PUT instead.
+ *
+ * {@link #complete()} completes the upload, once everything was written; {@link #close()} does not, as writers close
+ * their stream on failure too (e.g. PDFBox, when a save fails). On failure, call {@link #abort()}, so that no partial
+ * object is created.
+ *
+ * The defaults can be overridden with the envars S3_UPLOAD_PART_MB (default: 8, min: 5) and S3_UPLOAD_PARTS_IN_FLIGHT
+ * (default: 4).
+ */
+public class S3MultipartOutputStream extends OutputStream {
+
+    private static final int PART_SIZE = Optional.ofNullable(System.getenv("S3_UPLOAD_PART_MB"))
+            .map(Integer::parseInt).orElse(8) * 1024 * 1024;
+    private static final int PARTS_IN_FLIGHT = Optional.ofNullable(System.getenv("S3_UPLOAD_PARTS_IN_FLIGHT"))
+            .map(Integer::parseInt).orElse(4);
+
+    private static final ExecutorService UPLOAD_POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "s3-part-upload-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final AmazonS3 s3;
+    private final String bucketName;
+    private final String objectName;
+    private final String contentType;
+    private final int partSize;
+
+    private final Semaphore partsInFlight;
+    private final List<Future<PartETag>> parts = new ArrayList<>();
+
+    private byte[] buffer;
+    private int position = 0;
+    private long bytesWritten = 0;
+    private String uploadId = null;
+    private boolean closed = false;
+    private boolean completed = false;
+    private boolean aborted = false;
+
+    public S3MultipartOutputStream(AmazonS3 s3, String bucketName, String objectName, String contentType) {
+        this(s3, bucketName, objectName, contentType, PART_SIZE, PARTS_IN_FLIGHT);
+    }
+
+    public S3MultipartOutputStream(AmazonS3 s3, String bucketName, String objectName, String contentType,
+                                   int partSize, int maxPartsInFlight) {
+        if (partSize < 5 * 1024 * 1024) {
+            throw new IllegalArgumentException("S3 parts must be at least 5 MB; got: " + partSize);
+        }
+        this.s3 = s3;
+        this.bucketName = bucketName;
+        this.objectName = objectName;
+        this.contentType = contentType;
+        this.partSize = partSize;
+        this.partsInFlight = new Semaphore(maxPartsInFlight);
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        failIfClosed();
+        if (position == partSize) {
+            uploadPart();
+        }
+        buffer[position++] = (byte) b;
+        bytesWritten++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        failIfClosed();
+        bytesWritten += len;
+        while (len > 0) {
+            if (position == partSize) {
+                uploadPart();
+            }
+            int chunk = Math.min(len, partSize - position);
+            System.arraycopy(b, off, buffer, position, chunk);
+            position += chunk;
+            off += chunk;
+            len -= chunk;
+        }
+    }
+
+    /**
+     * Stop accepting writes. Nothing is published: call {@link #complete()} or {@link #abort()}.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * Upload the remaining bytes and complete the upload: the object is then created, with everything written.
+     */
+    public void complete() throws IOException {
+        if (aborted) {
+            throw new IOException("Upload to S3 was aborted: " + bucketName + "/" + objectName);
+        }
+        if (completed) {
+            return;
+        }
+        completed = true;
+        closed = true;
+
+        if (uploadId == null) {
+            //Small object: a single PUT
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(position);
+            metadata.setContentType(contentType);
+            s3.putObject(new PutObjectRequest(bucketName, objectName,
+                    new ByteArrayInputStream(buffer, 0, position), metadata));
+            buffer = null;
+            return;
+        }
+
+        try {
+            if (position > 0) {
+                uploadPart();
+            }
+            buffer = null;
+
+            List<PartETag> partETags = new ArrayList<>(parts.size());
+            for (Future<PartETag> part : parts) {
+                partETags.add(part.get());
+            }
+            partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucketName, objectName, uploadId, partETags));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new IOException("Interrupted while uploading to S3: " + bucketName + "/" + objectName, e);
+        } catch (ExecutionException | RuntimeException e) {
+            abort();
+            throw new IOException("Could not upload to S3: " + bucketName + "/" + objectName, e);
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Discard what was written (and uploaded) so far. No object is created.
+     */
+    public void abort() {
+        if (aborted) {
+            return;
+        }
+        aborted = true;
+        closed = true;
+        buffer = null;
+        for (Future<PartETag> part : parts) {
+            part.cancel(true);
+        }
+        if (uploadId != null) {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, objectName, uploadId));
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    private void uploadPart() throws IOException {
+        failIfAnyPartFailed();
+
+        if (uploadId == null) {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentType(contentType);
+            uploadId = s3.initiateMultipartUpload(
+                    new InitiateMultipartUploadRequest(bucketName, objectName, metadata)).getUploadId();
+        }
+
+        try {
+            partsInFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading to S3: " + bucketName + "/" + objectName, e);
+        }
+
+        byte[] partBytes = buffer;
+        int partLength = position;
+        int partNumber = parts.size() + 1;
+
+        parts.add(UPLOAD_POOL.submit(() -> {
+            try {
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName(bucketName)
+                        .withKey(objectName)
+                        .withUploadId(uploadId)
+                        .withPartNumber(partNumber)
+                        .withPartSize(partLength)
+                        .withInputStream(new ByteArrayInputStream(partBytes, 0, partLength));
+                return s3.uploadPart(request).getPartETag();
+            } finally {
+                partsInFlight.release();
+            }
+        }));
+
+        //The part being uploaded keeps its buffer; the next part gets a new one
+        buffer = completed ? null : new byte[partSize];
+        position = 0;
+    }
+
+    private void failIfClosed() throws IOException {
+        if (closed) {
+            throw new IOException("Stream to S3 is closed: " + bucketName + "/" + objectName);
+        }
+    }
+
+    private void failIfAnyPartFailed() throws IOException {
+        for (Future<PartETag> part : parts) {
+            if (part.isDone()) {
+                try {
+                    part.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException("Could not upload to S3: " + bucketName + "/" + objectName, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import com.amazon.textract.pdf.PDFDocument;
+import org.apache.pdfbox.cos.*;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDResources;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Stitches the partial searchable pdfs of the shards of a document (see {@link ShardPlanner}) back into one pdf, in
+ * order.
+ *
+ * Each partial pdf has its own copy of the resources its pages share with the pages of the other shards: the font of
+ * the text layers, and the fonts and images of the born-digital pages copied from the same input document. Resources
+ * with the same content (the same dictionary entries and stream bytes) are written once: the pages of later shards
+ * are pointed to the copy of the first shard that has it.
+ *
+ * The content streams of the pages are copied into the merged pdf, but their resources (fonts and images) are shared
+ * with the partial pdfs, which are hence all open until the merged one is saved. The streams of both are kept within
+ * the memory budget of {@link PDFDocument#defaultMemoryUsageSetting()}.
+ */
+public class ShardMerger {
+
+    private static final COSName[] RESOURCE_TYPES = {COSName.FONT, COSName.XOBJECT, COSName.EXT_G_STATE,
+            COSName.COLORSPACE, COSName.PATTERN, COSName.SHADING};
+
+    // Nesting past which a resource is not compared (e.g. a cycle), and then never deduplicated
+    private static final int MAX_DEPTH = 32;
+
+    private final Map<String, COSBase> resourcesByDigest = new HashMap<>();
+    private final Map<COSBase, String> digests = new IdentityHashMap<>();
+    private int resourcesDeduplicated = 0;
+
+    /**
+     * Merge the partial pdfs, in the given order, into output. The output is written aside and then renamed, so it is
+     * never seen half-written.
+     */
+    public void merge(List<File> partials, File output) throws IOException {
+        System.out.println("Merging " + partials.size() + " shards into: " + output);
+        PDFDocument merged = new PDFDocument();
+        try {
+            for (File partial : partials) {
+                PDDocument source = PDDocument.load(partial, PDFDocument.defaultMemoryUsageSetting());
+                if (source.getNumberOfPages() == 0) {
+                    source.close();
+                    continue;
+                }
+                //The pages share their resources dictionary with the source pages, so deduplicating one does both
+                for (int page = 0; page < source.getNumberOfPages(); page++) {
+                    merged.importPage(source, page);
+                    deduplicate(source.getPage(page).getResources());
+                }
+            }
+
+            File tmpOutput = new File(output.getPath() + ".tmp");
+            merged.save(tmpOutput.getPath());
+            Files.move(tmpOutput.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Merged " + merged.getNumberOfPages() + " pages, " + resourcesDeduplicated
+                    + " shared resources deduplicated: " + output);
+        } finally {
+            //Closes the partial pdfs too
+            merged.close();
+        }
+    }
+
+    public int getResourcesDeduplicated() {
+        return resourcesDeduplicated;
+    }
+
+    private void deduplicate(PDResources resources) throws IOException {
+        if (resources == null) {
+            return;
+        }
+        for (COSName type : RESOURCE_TYPES) {
+            COSDictionary resourcesOfType = resources.getCOSObject().getCOSDictionary(type);
+            if (resourcesOfType == null) {
+                continue;
+            }
+            for (COSName name : new ArrayList<>(resourcesOfType.keySet())) {
+                COSBase resource = resourcesOfType.getDictionaryObject(name);
+                if (resource == null) {
+                    continue;
+                }
+                String digest = digest(resource);
+                if (digest == null) {
+                    continue;
+                }
+                COSBase canonical = resourcesByDigest.putIfAbsent(digest, resource);
+                if (canonical != null && canonical != resource) {
+                    resourcesOfType.setItem(name, canonical);
+                    resourcesDeduplicated++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return hash of the content of the resource, or null if it cannot be compared
+     */
+    private String digest(COSBase resource) throws IOException {
+        String digest = digests.get(resource);
+        if (digest == null && !digests.containsKey(resource)) {
+            MessageDigest messageDigest = newDigest();
+            digest = update(messageDigest, resource, 0) ? Base64.getEncoder().encodeToString(messageDigest.digest()) : null;
+            digests.put(resource, digest);
+        }
+        return digest;
+    }
+
+    private static boolean update(MessageDigest digest, COSBase base, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            return false;
+        }
+        if (base instanceof COSObject) {
+            base = ((COSObject) base).getObject();
+        }
+        if (base instanceof COSStream) {
+            update(digest, "stream(");
+            if (!updateEntries(digest, (COSDictionary) base, depth)) {
+                return false;
+            }
+            try (InputStream in = ((COSStream) base).createRawInputStream()) {
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+            update(digest, ")");
+        } else if (base instanceof COSDictionary) {
+            update(digest, "dict(");
+            if (!updateEntries(digest, (COSDictionary) base, depth)) {
+                return false;
+            }
+            update(digest, ")");
+        } else if (base instanceof COSArray) {
+            update(digest, "array(");
+            for (COSBase item : (COSArray) base) {
+                if (!update(digest, item, depth + 1)) {
+                    return false;
+                }
+                update(digest, ",");
+            }
+            update(digest, ")");
+        } else {
+            //Names, strings, numbers, booleans and null
+            update(digest, String.valueOf(base));
+        }
+        return true;
+    }
+
+    private static boolean updateEntries(MessageDigest digest, COSDictionary dictionary, int depth) throws IOException {
+        List<COSName> keys = new ArrayList<>(dictionary.keySet());
+        keys.sort(Comparator.naturalOrder());
+        for (COSName key : keys) {
+            //The length depends on how the stream was written, not on its content; the parent is not content
+            if (key.equals(COSName.LENGTH) || key.equals(COSName.PARENT)) {
+                continue;
+            }
+            update(digest, key.getName() + "=");
+            if (!update(digest, dictionary.getItem(key), depth + 1)) {
+                return false;
+            }
+            update(digest, ";");
+        }
+        return true;
+    }
+
+    private static void update(MessageDigest digest, String text) {
+        digest.update(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Splits a document into page ranges (shards) that can be made searchable independently, e.g. by several processes or
+ * nodes, and merged back in order (see {@link ShardedPdf}).
+ *
+ * A document gets as few shards as possible of at most maxPagesPerShard pages, and the pages are spread evenly over
+ * them: 101 pages with at most 50 per shard make shards of 34, 34 and 33 pages, not 50, 50 and 1.
+ */
+public class ShardPlanner {
+
+    private final int maxPagesPerShard;
+
+    public ShardPlanner(int maxPagesPerShard) {
+        if (maxPagesPerShard < 1) {
+            throw new IllegalArgumentException("Pages per shard must be positive");
+        }
+        this.maxPagesPerShard = maxPagesPerShard;
+    }
+
+    /**
+     * Planner with the max pages per shard from the envar PDF_SHARD_PAGES (default: 50).
+     */
+    public static ShardPlanner fromEnvironment() {
+        return new ShardPlanner(Optional.ofNullable(System.getenv("PDF_SHARD_PAGES"))
+                .map(Integer::parseInt).orElse(50));
+    }
+
+    /**
+     * @return the shards of a document of numberOfPages pages, in page order; a single empty shard for no pages
+     */
+    public List<Shard> plan(int numberOfPages) {
+        int shardCount = Math.max(1, (numberOfPages + maxPagesPerShard - 1) / maxPagesPerShard);
+        List<Shard> shards = new ArrayList<>(shardCount);
+        int firstPage = 0;
+        for (int index = 0; index < shardCount; index++) {
+            //The first (numberOfPages % shardCount) shards take one page more
+            int pages = numberOfPages / shardCount + (index < numberOfPages % shardCount ? 1 : 0);
+            shards.add(new Shard(index, firstPage, firstPage + pages));
+            firstPage += pages;
+        }
+        return shards;
+    }
+
+    /**
+     * Pages from firstPage (included) to endPage (excluded) of a document, 0-based.
+     */
+    public static class Shard {
+        public final int index;
+        public final int firstPage;
+        public final int endPage;
+
+        public Shard(int index, int firstPage, int endPage) {
+            this.index = index;
+            this.firstPage = firstPage;
+            this.endPage = endPage;
+        }
+
+        public int getNumberOfPages() {
+            return endPage - firstPage;
+        }
+
+        @Override
+        public String toString() {
+            return "shard " + index + " (pages " + firstPage + " to " + endPage + ")";
+        }
+    }
+}
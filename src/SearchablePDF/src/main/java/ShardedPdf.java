@@ -0,0 +1,228 @@
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes a large local pdf searchable with several worker processes (or nodes sharing a filesystem), so that the
+ * largest documents do not set the latency: the document is split into page ranges (see {@link ShardPlanner}), each
+ * range is made searchable on its own into a partial pdf, and the partial pdfs are merged back in order (see
+ * {@link ShardMerger}).
+ *
+ * The shards are tasks of a {@link FileWorkQueue} in a job directory, which also holds the partial pdfs:
+ * <pre>
+ * ShardedPdf plan  input.pdf output.pdf jobDir   # split the document into shards
+ * ShardedPdf work  jobDir                        # run by any number of workers, until no shard is left
+ * ShardedPdf merge jobDir                        # once every shard is done
+ * ShardedPdf run   input.pdf output.pdf [jobDir] # all of the above, with SHARD_WORKERS local worker processes
+ * </pre>
+ */
+public class ShardedPdf {
+
+    private static final String JOB_FILE = "job.properties";
+    private static final String PARTIALS_DIR = "partials";
+
+    private static final long IDLE_POLL_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 4 && args[0].equals("plan")) {
+            plan(args[1], args[2], Paths.get(args[3]));
+        } else if (args.length >= 2 && args[0].equals("work")) {
+            work(Paths.get(args[1]));
+        } else if (args.length >= 2 && args[0].equals("merge")) {
+            System.exit(merge(Paths.get(args[1])) ? 0 : 1);
+        } else if (args.length >= 3 && args[0].equals("run")) {
+            Path jobDirectory = args.length >= 4 ? Paths.get(args[3]) : Files.createTempDirectory("sharded-pdf");
+            int workers = Optional.ofNullable(System.getenv("SHARD_WORKERS")).map(Integer::parseInt).orElse(2);
+            System.exit(run(args[1], args[2], jobDirectory, workers) ? 0 : 1);
+        } else {
+            System.out.println("Usage: ShardedPdf plan <input.pdf> <output.pdf> <jobDir> | work <jobDir>"
+                    + " | merge <jobDir> | run <input.pdf> <output.pdf> [jobDir]");
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Split the input document into shards, queued in the job directory.
+     */
+    public static void plan(String documentName, String outputDocumentName, Path jobDirectory) throws IOException {
+        int numberOfPages;
+        try (PDDocument document = PDDocument.load(new File(documentName), MemoryUsageSetting.setupTempFileOnly())) {
+            numberOfPages = document.getNumberOfPages();
+        }
+        List<ShardPlanner.Shard> shards = ShardPlanner.fromEnvironment().plan(numberOfPages);
+
+        FileWorkQueue queue = FileWorkQueue.fromEnvironment(jobDirectory);
+        Files.createDirectories(jobDirectory.resolve(PARTIALS_DIR));
+        for (ShardPlanner.Shard shard : shards) {
+            Properties task = new Properties();
+            task.setProperty("input", new File(documentName).getAbsolutePath());
+            task.setProperty("firstPage", Integer.toString(shard.firstPage));
+            task.setProperty("endPage", Integer.toString(shard.endPage));
+            task.setProperty("partial", partialFile(jobDirectory, shard.index).toAbsolutePath().toString());
+            queue.submit(taskId(shard.index), task);
+        }
+
+        Properties job = new Properties();
+        job.setProperty("output", new File(outputDocumentName).getAbsolutePath());
+        job.setProperty("shards", Integer.toString(shards.size()));
+        job.setProperty("pages", Integer.toString(numberOfPages));
+        try (OutputStream out = Files.newOutputStream(jobDirectory.resolve(JOB_FILE))) {
+            job.store(out, null);
+        }
+        System.out.println("Planned " + shards.size() + " shards of " + numberOfPages + " pages: " + jobDirectory);
+    }
+
+    /**
+     * Make the shards of the job directory searchable, one after the other, until none is left (pending, or claimed
+     * by another worker that may still fail it).
+     */
+    public static void work(Path jobDirectory) throws IOException, InterruptedException {
+        FileWorkQueue queue = FileWorkQueue.fromEnvironment(jobDirectory);
+        DemoPdfFromLocalPdf processor = new DemoPdfFromLocalPdf();
+        ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "shard-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            while (true) {
+                FileWorkQueue.Task task = queue.claim();
+                if (task == null) {
+                    if (queue.isDrained()) {
+                        break;
+                    }
+                    Thread.sleep(IDLE_POLL_MILLIS);
+                    continue;
+                }
+
+                long heartbeatMillis = Math.max(1, queue.getLeaseMillis() / 3);
+                ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(() -> {
+                    try {
+                        if (!queue.heartbeat(task)) {
+                            System.out.println("Lease lost for task: " + task.id);
+                        }
+                    } catch (IOException e) {
+                        System.out.println("Could not extend the lease of task " + task.id + ": " + e);
+                    }
+                }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+
+                try {
+                    processShard(processor, task);
+                    heartbeat.cancel(false);
+                    queue.complete(task);
+                } catch (IOException | RuntimeException e) {
+                    heartbeat.cancel(false);
+                    System.out.println("FAILED " + task.id + ": " + e);
+                    queue.fail(task, e);
+                }
+            }
+        } finally {
+            heartbeats.shutdownNow();
+        }
+        Metrics.getDefault().export();
+    }
+
+    /**
+     * Merge the partial pdfs of the job directory into its output, once every shard is done.
+     *
+     * @return false if some shard failed, or is not done yet
+     */
+    public static boolean merge(Path jobDirectory) throws IOException {
+        FileWorkQueue queue = FileWorkQueue.fromEnvironment(jobDirectory);
+        Properties job = new Properties();
+        try (InputStream in = Files.newInputStream(jobDirectory.resolve(JOB_FILE))) {
+            job.load(in);
+        }
+        int shardCount = Integer.parseInt(job.getProperty("shards"));
+
+        List<String> failed = queue.list(FileWorkQueue.FAILED);
+        for (String taskId : failed) {
+            System.out.println("FAILED " + taskId + ": " + queue.read(FileWorkQueue.FAILED, taskId).getProperty("error"));
+        }
+        List<String> done = queue.list(FileWorkQueue.DONE);
+        if (!failed.isEmpty() || done.size() < shardCount) {
+            System.out.println("Cannot merge: " + done.size() + " of " + shardCount + " shards done, "
+                    + failed.size() + " failed");
+            return false;
+        }
+
+        List<File> partials = new ArrayList<>(shardCount);
+        for (int index = 0; index < shardCount; index++) {
+            partials.add(partialFile(jobDirectory, index).toFile());
+        }
+        new ShardMerger().merge(partials, new File(job.getProperty("output")));
+        return true;
+    }
+
+    /**
+     * Plan, work with local worker processes and merge.
+     *
+     * @return false if some shard failed
+     */
+    public static boolean run(String documentName, String outputDocumentName, Path jobDirectory, int workers)
+            throws IOException, InterruptedException {
+        plan(documentName, outputDocumentName, jobDirectory);
+
+        //Workers are processes of their own, like they would be on other nodes
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ShardedPdf.class.getName(), "work", jobDirectory.toString())
+                    .inheritIO()
+                    .start());
+        }
+        for (Process process : processes) {
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                System.out.println("Worker exited with code " + exitCode);
+            }
+        }
+        //A worker that died with a shard claimed leaves it to the others after the lease; finish it here then
+        if (!FileWorkQueue.fromEnvironment(jobDirectory).isDrained()) {
+            work(jobDirectory);
+        }
+
+        return merge(jobDirectory);
+    }
+
+    private static void processShard(DemoPdfFromLocalPdf processor, FileWorkQueue.Task task) throws IOException {
+        File partial = new File(task.get("partial"));
+        //Unique among workers on other hosts too, which may share the job directory and have the same pid
+        File tmpPartial = new File(partial.getPath() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            processor.run(task.get("input"), tmpPartial.getPath(),
+                    Integer.parseInt(task.get("firstPage")), Integer.parseInt(task.get("endPage")));
+            //Written aside and renamed, so the merge never reads a partial pdf half-written
+            Files.move(tmpPartial.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpPartial.toPath());
+        }
+    }
+
+    private static String taskId(int shardIndex) {
+        return String.format("shard-%06d", shardIndex);
+    }
+
+    private static Path partialFile(Path jobDirectory, int shardIndex) {
+        return jobDirectory.resolve(PARTIALS_DIR).resolve(taskId(shardIndex) + ".pdf");
+    }
+}
@@ -0,0 +1,73 @@
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.util.json.Jackson;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Completion notifications published by Amazon Textract to an SNS topic, and delivered to an SQS queue.
+ *
+ * Both SNS envelopes and raw message delivery are understood. A notification is only deleted from the queue once it
+ * is acknowledged, i.e. once it completed a job of this process: other processes may share the queue, and receive
+ * the notifications of their own jobs once they are visible again. Messages that are not job notifications (e.g. not
+ * JSON) are deleted at once, so that they are not received over and over.
+ */
+public class SqsJobCompletionQueue implements JobCompletionSource {
+
+    private final AmazonSQS sqs;
+    private final String queueUrl;
+
+    public SqsJobCompletionQueue(AmazonSQS sqs, String queueUrl) {
+        this.sqs = sqs;
+        this.queueUrl = queueUrl;
+    }
+
+    @Override
+    public List<JobCompletion> receive() {
+        ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+                .withWaitTimeSeconds(20)
+                .withMaxNumberOfMessages(10);
+
+        List<JobCompletion> completions = new ArrayList<>();
+        for (Message message : sqs.receiveMessage(request).getMessages()) {
+            JobCompletion completion = parse(message);
+            if (completion != null) {
+                completions.add(completion);
+            } else {
+                System.out.println("Deleting unexpected message on " + queueUrl + ": " + message.getBody());
+                sqs.deleteMessage(queueUrl, message.getReceiptHandle());
+            }
+        }
+        return completions;
+    }
+
+    @Override
+    public void acknowledge(JobCompletion completion) {
+        sqs.deleteMessage(queueUrl, completion.receipt);
+    }
+
+    // -------------------------------------------------------------------------
+
+    /**
+     * @return the job notification in the message, or null if it is none
+     */
+    private static JobCompletion parse(Message message) {
+        try {
+            JsonNode body = Jackson.jsonNodeOf(message.getBody());
+            if (body != null && body.has("Message")) {
+                //SNS envelope
+                body = Jackson.jsonNodeOf(body.get("Message").asText());
+            }
+            if (body == null || !body.has("JobId") || !body.has("Status")) {
+                return null;
+            }
+            return new JobCompletion(body.get("JobId").asText(), body.get("Status").asText(),
+                    message.getReceiptHandle());
+        } catch (SdkClientException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the retries and batching of the {@link TagtogUploader} against a local stub of the tagtog documents API,
+ * scripted to answer each request in turn with a status (and Retry-After header), or to drop the connection.
+ *
+ * Run it with no arguments; it throws at the first scenario that does not behave as expected.
+ */
+public class TagtogStubCheck {
+
+    // Scripted answer that closes the connection without a response
+    private static final int DROP = -1;
+
+    private final HttpServer server;
+    private final List<Integer> script = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger files = new AtomicInteger();
+    private volatile boolean lastRequestChunked;
+    private volatile String retryAfter;
+
+    private TagtogStubCheck() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/-api/documents/v1", this::handle);
+        server.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        TagtogStubCheck stub = new TagtogStubCheck();
+        try {
+            stub.checkRetries();
+            stub.checkBatching();
+            stub.checkBodyWrittenOnce();
+            checkConnectionRefused();
+        } finally {
+            stub.server.stop(0);
+        }
+        System.out.println("All tagtog uploader checks passed");
+        System.exit(0);
+    }
+
+    private void checkRetries() throws Exception {
+        TagtogUploader uploader = uploader(domain(), 1, 3);
+        File file = tempFile();
+
+        answer(429);
+        retryAfter = "1";
+        long startMillis = System.currentTimeMillis();
+        expectSuccess(uploader, file, "429 then 200");
+        expect(requests.get() == 2, "429 is retried once");
+        expect(System.currentTimeMillis() - startMillis >= 1000, "Retry-After is honoured");
+        retryAfter = null;
+
+        answer(503, 502);
+        expectSuccess(uploader, file, "5xx then 200");
+        expect(requests.get() == 3, "5xx is retried");
+
+        answer(503, 503, 503);
+        expectFailure(uploader, file, "5xx on every attempt");
+        expect(requests.get() == 3, "retries stop after maxAttempts");
+
+        answer(400);
+        expectFailure(uploader, file, "400");
+        expect(requests.get() == 1, "4xx is not retried");
+
+        answer(DROP);
+        expectFailure(uploader, file, "dropped connection");
+        expect(requests.get() == 1, "a request sent but unanswered is not retried");
+
+        uploader.close();
+        file.delete();
+    }
+
+    private void checkBatching() throws Exception {
+        int batchSize = 3;
+        TagtogUploader uploader = uploader(domain(), batchSize, 1);
+        File file = tempFile();
+        ExecutorService threads = Executors.newFixedThreadPool(batchSize);
+
+        answer();
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            String filename = "file" + i + ".pdf";
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return uploader.upload(file, filename);
+                } catch (IOException | InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }, threads));
+        }
+        results.forEach(CompletableFuture::join);
+        expect(requests.get() == 1 && files.get() == batchSize, "files uploaded together are sent in one request");
+
+        threads.shutdown();
+        uploader.close();
+        file.delete();
+    }
+
+    private void checkBodyWrittenOnce() throws Exception {
+        AtomicInteger writes = new AtomicInteger();
+        TagtogUploader.BodyWriter body = out -> {
+            writes.incrementAndGet();
+            out.write("%PDF-1.4".getBytes(StandardCharsets.US_ASCII));
+        };
+
+        TagtogUploader retrying = uploader(domain(), 1, 3);
+        answer(503);
+        retrying.upload(body, "written.pdf");
+        expect(requests.get() == 2 && writes.get() == 1, "content written on demand is written once, across retries");
+        retrying.close();
+
+        TagtogUploader notRetrying = uploader(domain(), 1, 1);
+        writes.set(0);
+        answer();
+        notRetrying.upload(body, "streamed.pdf");
+        expect(writes.get() == 1 && lastRequestChunked, "without retries, content is streamed into the request");
+        notRetrying.close();
+    }
+
+    private static void checkConnectionRefused() throws Exception {
+        int unusedPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            unusedPort = socket.getLocalPort();
+        }
+        TagtogUploader uploader = uploader("http://localhost:" + unusedPort, 1, 2);
+        File file = tempFile();
+        try {
+            uploader.upload(file, "refused.pdf");
+            throw new IllegalStateException("Expected the upload to a refused connection to fail");
+        } catch (IOException e) {
+            System.out.println("Connection refused, as expected: " + e);
+        }
+        uploader.close();
+        file.delete();
+    }
+
+    // -------------------------------------------------------------------------
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        lastRequestChunked = "chunked".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+        String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.ISO_8859_1);
+        files.addAndGet(requestBody.split("name=\"files\"", -1).length - 1);
+
+        int status = script.isEmpty() ? 200 : script.remove(0);
+        if (status == DROP) {
+            //The server closes the connection of an exchange whose handler throws
+            throw new IOException("Dropping the connection");
+        }
+        if (retryAfter != null && status != 200) {
+            exchange.getResponseHeaders().add("Retry-After", retryAfter);
+        }
+        byte[] response = "{}".getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, response.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    /**
+     * Answer the next requests with these statuses, then with 200; and reset the counters.
+     */
+    private void answer(int... statuses) {
+        script.clear();
+        for (int status : statuses) {
+            script.add(status);
+        }
+        requests.set(0);
+        files.set(0);
+    }
+
+    private String domain() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private static TagtogUploader uploader(String domain, int batchSize, int maxAttempts) {
+        return new TagtogUploader(domain, "user", "password", "owner", "project", "pool",
+                batchSize, batchSize, 500, maxAttempts, new Metrics());
+    }
+
+    private static File tempFile() throws IOException {
+        File file = File.createTempFile("tagtog-stub-check", ".pdf");
+        Files.write(file.toPath(), "%PDF-1.4".getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static void expectSuccess(TagtogUploader uploader, File file, String scenario) throws Exception {
+        try {
+            uploader.upload(file, "check.pdf");
+        } catch (IOException e) {
+            throw new IllegalStateException("Expected the upload to succeed: " + scenario, e);
+        }
+    }
+
+    private static void expectFailure(TagtogUploader uploader, File file, String scenario) throws Exception {
+        try {
+            uploader.upload(file, "check.pdf");
+        } catch (IOException e) {
+            System.out.println("Failed, as expected (" + scenario + "): " + e);
+            return;
+        }
+        throw new IllegalStateException("Expected the upload to fail: " + scenario);
+    }
+
+    private static void expect(boolean condition, String check) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + check);
+        }
+        System.out.println("OK: " + check);
+    }
+}
@@ -0,0 +1,481 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.auth.AuthenticationException;
+import org.apache.http.auth.Credentials;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MIME;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.FileBody;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContextBuilder;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Uploads files to a tagtog project folder with the documents API.
+ *
+ * Connections are pooled (maxConnections) and kept alive between uploads. Files uploaded at about the same time are
+ * sent together, as a repeated "files" part, up to batchSize files per request: a file waits at most lingerMillis for
+ * others to join its request. Batching only happens with at least as many threads uploading as batchSize.
+ *
+ * Requests rejected with 429 or 5xx (or whose connection could not be established) are retried, up to maxAttempts in
+ * total, after the delay asked by the Retry-After header of the response, or else after an exponential backoff with
+ * full jitter. A request sent but left unanswered (e.g. the connection was dropped) is not retried: tagtog may have
+ * stored its files already, and would store them twice.
+ *
+ * Content can also be uploaded as it is written (see {@link BodyWriter}), e.g. a pdf as it is saved. The content is
+ * written only once: when requests may be retried (maxAttempts above 1), it is written to a temporary spill file before
+ * the first attempt, and every attempt reads from it; otherwise it is streamed into the request, with chunked transfer
+ * encoding, without being written to disk.
+ *
+ * Its options are read from these (optional) envars by {@link #fromEnvironment}:
+ * <ul>
+ * <li>TAGTOG_MAX_CONNECTIONS (default: the number of upload threads)</li>
+ * <li>TAGTOG_UPLOAD_BATCH_SIZE (default: 1) and TAGTOG_UPLOAD_LINGER_MS (default: 500)</li>
+ * <li>TAGTOG_UPLOAD_MAX_ATTEMPTS (default: 5)</li>
+ * </ul>
+ */
+public class TagtogUploader implements Closeable {
+
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    private static final long MAX_RETRY_AFTER_MILLIS = 300000;
+
+    // When the server does not send a Keep-Alive header
+    private static final long KEEP_ALIVE_MILLIS = 30000;
+    // Check that pooled connections idle for longer were not closed by the server meanwhile
+    private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2000;
+
+    /**
+     * Writes the content of a file to upload; it is called once, either to stream the content into the request, or to
+     * write it to a spill file when the request may be retried (e.g. saving a pdf twice is not reliable).
+     */
+    public interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final String domain;
+    private final Credentials credentials;
+    private final URI documentsUri;
+
+    private final int batchSize;
+    private final long lingerMillis;
+    private final int maxAttempts;
+
+    private final CloseableHttpClient httpClient;
+    private final Metrics.Stage uploadStage;
+
+    // Files waiting for their batch to be sent
+    private List<PendingUpload> pending = new ArrayList<>();
+
+    public TagtogUploader(String domain, String username, String password, String owner, String project,
+            String folder, int maxConnections, int batchSize, long lingerMillis, int maxAttempts, Metrics metrics) {
+        if (maxConnections < 1 || batchSize < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Expected positive maxConnections, batchSize and maxAttempts; got: "
+                    + maxConnections + ", " + batchSize + ", " + maxAttempts);
+        }
+        this.domain = domain;
+        this.credentials = new UsernamePasswordCredentials(username, password);
+        this.batchSize = batchSize;
+        this.lingerMillis = lingerMillis;
+        this.maxAttempts = maxAttempts;
+        this.uploadStage = metrics.stage("tagtog_upload");
+        metrics.queue("tagtog_upload_pending", () -> {
+            synchronized (this) {
+                return pending.size();
+            }
+        });
+
+        try {
+            this.documentsUri = new URIBuilder(domain + "/-api/documents/v1") //
+                    .setParameter("owner", owner) //
+                    .setParameter("project", project) //
+                    .setParameter("folder", folder) //
+                    .setParameter("output", "null") //
+                    .build();
+
+            //The connection manager ignores the SSL context of the client builder: register it here
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                    RegistryBuilder.<ConnectionSocketFactory>create()
+                            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                            .register("https", new SSLConnectionSocketFactory(new SSLContextBuilder()
+                                    .loadTrustMaterial(null, TrustSelfSignedStrategy.INSTANCE).build()))
+                            .build());
+            connectionManager.setMaxTotal(maxConnections);
+            connectionManager.setDefaultMaxPerRoute(maxConnections);
+            connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+            this.httpClient = HttpClients.custom() //
+                    .setConnectionManager(connectionManager) //
+                    .setKeepAliveStrategy((response, context) -> {
+                        long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                        return keepAlive > 0 ? keepAlive : KEEP_ALIVE_MILLIS;
+                    }) //
+                    .evictIdleConnections(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS) //
+                    .build();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Could not set up the tagtog client for " + domain, e);
+        }
+    }
+
+    public static TagtogUploader fromEnvironment(String domain, String username, String password, String owner,
+            String project, String folder, int uploadThreads) {
+        return new TagtogUploader(domain, username, password, owner, project, folder,
+                Optional.ofNullable(System.getenv("TAGTOG_MAX_CONNECTIONS")).map(Integer::parseInt).orElse(uploadThreads),
+                Optional.ofNullable(System.getenv("TAGTOG_UPLOAD_BATCH_SIZE")).map(Integer::parseInt).orElse(1),
+                Optional.ofNullable(System.getenv("TAGTOG_UPLOAD_LINGER_MS")).map(Long::parseLong).orElse(500L),
+                Optional.ofNullable(System.getenv("TAGTOG_UPLOAD_MAX_ATTEMPTS")).map(Integer::parseInt).orElse(5),
+                Metrics.getDefault());
+    }
+
+    /**
+     * @throws IllegalArgumentException if tagtog does not accept the credentials
+     */
+    public void checkCredentials() throws IOException, AuthenticationException {
+        String userUrl = domain + "/" + credentials.getUserPrincipal().getName();
+
+        try (CloseableHttpResponse response = httpClient.execute(doPreemptiveBasicAuth(new HttpGet(userUrl)))) {
+            EntityUtils.consume(response.getEntity());
+            int statusCode = response.getStatusLine().getStatusCode();
+
+            if (statusCode != 200) {
+                throw new IllegalArgumentException(
+                        "The authentication credentials seem wrong. Received " + statusCode + " on " + userUrl);
+            }
+        }
+    }
+
+    /**
+     * Upload a file, possibly in the same request as other files; blocks until its request is done.
+     *
+     * @param file     file to upload to tagtog
+     * @param filename filename that will be sent to tagtog
+     * @return the response of tagtog to the request (status line and body)
+     * @throws IOException if tagtog did not accept the file, after all the attempts
+     */
+    public String upload(File file, String filename) throws IOException, InterruptedException {
+        return upload(new PendingUpload(file, null, filename));
+    }
+
+    /**
+     * Same as {@link #upload(File, String)}, for content written on demand, e.g. a pdf saved straight into the request.
+     * The content is written by the thread sending the request, while upload blocks.
+     */
+    public String upload(BodyWriter body, String filename) throws IOException, InterruptedException {
+        return upload(new PendingUpload(null, body, filename));
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    // -------------------------------------------------------------------------
+
+    private String upload(PendingUpload upload) throws IOException, InterruptedException {
+
+        List<PendingUpload> batch = null;
+        synchronized (this) {
+            pending.add(upload);
+            if (pending.size() >= batchSize) {
+                batch = takePending();
+            }
+        }
+
+        if (batch == null) {
+            try {
+                //Another file fills the batch and sends it...
+                return getResult(upload, lingerMillis);
+            } catch (TimeoutException e) {
+                //...or nobody did in time: send what there is
+                synchronized (this) {
+                    if (pending.contains(upload)) {
+                        batch = takePending();
+                    }
+                }
+            }
+        }
+
+        if (batch != null) {
+            send(batch);
+        }
+        try {
+            return getResult(upload, Long.MAX_VALUE);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private List<PendingUpload> takePending() {
+        List<PendingUpload> batch = pending;
+        pending = new ArrayList<>();
+        return batch;
+    }
+
+    private static String getResult(PendingUpload upload, long timeoutMillis)
+            throws IOException, InterruptedException, TimeoutException {
+        try {
+            return upload.result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void send(List<PendingUpload> batch) throws InterruptedException {
+        try {
+            String response;
+            try (Metrics.Timer timer = uploadStage.time()) {
+                response = sendWithRetries(batch);
+            }
+            uploadStage.addBytesOut(batch.stream().mapToLong(upload -> upload.bytes).sum());
+            batch.forEach(upload -> upload.result.complete(response));
+        } catch (IOException | RuntimeException e) {
+            batch.forEach(upload -> upload.result.completeExceptionally(e));
+        } finally {
+            for (PendingUpload upload : batch) {
+                if (upload.spillFile != null) {
+                    upload.spillFile.delete();
+                }
+            }
+        }
+    }
+
+    private String sendWithRetries(List<PendingUpload> batch) throws IOException, InterruptedException {
+        String filenames = batch.stream().map(upload -> upload.filename).collect(Collectors.joining(", "));
+
+        for (int attempt = 1; ; attempt++) {
+            MultipartEntityBuilder entityBuilder = MultipartEntityBuilder.create();
+            for (PendingUpload upload : batch) {
+                if (maxAttempts > 1 && upload.body != null && upload.spillFile == null) {
+                    spill(upload);
+                }
+                entityBuilder.addPart("files", upload.contentBody());
+            }
+
+            HttpPost post = new HttpPost(documentsUri);
+            post.setEntity(entityBuilder.build());
+
+            System.out.println("POST " + filenames + " to:" + documentsUri
+                    + (attempt > 1 ? " (attempt " + attempt + ")" : ""));
+
+            long delayMillis;
+            String failure;
+            try (CloseableHttpResponse response = httpClient.execute(doPreemptiveBasicAuth(post))) {
+                String responseBody = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+                String responseLine = response.getStatusLine() + " " + responseBody;
+                System.out.println(responseLine);
+
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode >= 200 && statusCode < 300) {
+                    return responseLine;
+                }
+                if (!(statusCode == 429 || statusCode >= 500) || attempt >= maxAttempts) {
+                    throw new IOException("Upload of " + filenames + " failed: " + responseLine);
+                }
+                failure = response.getStatusLine().toString();
+                delayMillis = retryAfterMillis(response).orElse(backoffMillis(attempt));
+
+            } catch (ConnectException | ConnectTimeoutException e) {
+                //The connection could not be established, so the request did not reach tagtog: sending it again
+                //cannot duplicate it
+                if (attempt >= maxAttempts) {
+                    throw e;
+                }
+                failure = e.toString();
+                delayMillis = backoffMillis(attempt);
+
+            } catch (AuthenticationException e) {
+                throw new IOException(e);
+            }
+
+            System.out.println("Retrying upload of " + filenames + " in " + delayMillis + " ms: " + failure);
+            Thread.sleep(delayMillis);
+        }
+    }
+
+    /**
+     * Write the content of the upload to a temporary file, so that every attempt of its request reads the same bytes.
+     */
+    private static void spill(PendingUpload upload) throws IOException {
+        File spillFile = File.createTempFile("tagtog-upload", ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(spillFile.toPath()))) {
+            upload.body.writeTo(out);
+        } catch (IOException | RuntimeException e) {
+            spillFile.delete();
+            throw e;
+        }
+        upload.spillFile = spillFile;
+        upload.bytes = spillFile.length();
+        System.out.println("Spilled " + upload.filename + " to disk: " + upload.bytes + " bytes");
+    }
+
+    /**
+     * @return a random delay between 0 and the exponential backoff of the attempt ("full jitter"), so that uploads
+     * rejected together are not retried together
+     */
+    private static long backoffMillis(int attempt) {
+        long maxDelay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(maxDelay + 1);
+    }
+
+    /**
+     * @return the delay asked by the Retry-After header (in seconds, or an HTTP date), if any
+     */
+    private static Optional<Long> retryAfterMillis(CloseableHttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null) {
+            return Optional.empty();
+        }
+        String value = header.getValue().trim();
+        long delayMillis;
+        try {
+            delayMillis = Long.parseLong(value) * 1000;
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            if (date == null) {
+                return Optional.empty();
+            }
+            delayMillis = date.getTime() - System.currentTimeMillis();
+        }
+        return Optional.of(Math.min(MAX_RETRY_AFTER_MILLIS, Math.max(0, delayMillis)));
+    }
+
+    /**
+     * We do preemptive authentication for tagtog did not support pre-emptive
+     * authenticaton until 2021-04-25.
+     *
+     * This can be safely removed in a future version.
+     *
+     * References:
+     * https://github.com/apache/httpcomponents-client/blob/4.5.x/httpclient/src/examples/org/apache/http/examples/client/ClientPreemptiveBasicAuthentication.java
+     * https://stackoverflow.com/questions/7482523/preemptive-authentication-why
+     * https://stackoverflow.com/a/4328694
+     *
+     * @param httpRequest
+     * @return httpRequest with basic authentication credentials header
+     * @throws AuthenticationException
+     * @deprecated remove in future version
+     */
+    private HttpUriRequest doPreemptiveBasicAuth(HttpUriRequest httpRequest) throws AuthenticationException {
+        httpRequest.addHeader(new BasicScheme().authenticate(credentials, httpRequest));
+        return httpRequest;
+    }
+
+    private static class PendingUpload {
+        final File file; // null when the content is written on demand
+        final BodyWriter body;
+        final String filename;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        File spillFile; // written before the first attempt of a body, if its request may be retried
+        long bytes;
+
+        PendingUpload(File file, BodyWriter body, String filename) {
+            this.file = file;
+            this.body = body;
+            this.filename = filename;
+            this.bytes = file != null ? file.length() : 0;
+        }
+
+        AbstractContentBody contentBody() {
+            if (file != null || spillFile != null) {
+                return new FileBody(file != null ? file : spillFile, ContentType.APPLICATION_OCTET_STREAM, filename);
+            }
+            return new StreamedBody(this);
+        }
+    }
+
+    /**
+     * Part written as it is sent; its length is not known beforehand, so the request is sent chunked, and cannot be
+     * sent again by the client itself.
+     */
+    private static class StreamedBody extends AbstractContentBody {
+        private final PendingUpload upload;
+
+        StreamedBody(PendingUpload upload) {
+            super(ContentType.APPLICATION_OCTET_STREAM);
+            this.upload = upload;
+        }
+
+        @Override
+        public String getFilename() {
+            return upload.filename;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            upload.bytes = 0;
+            //Counts the bytes written; the request stream is closed by the client, not by the body
+            upload.body.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    upload.bytes++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    upload.bytes += len;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+        }
+
+        @Override
+        public String getTransferEncoding() {
+            return MIME.ENC_BINARY;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+import com.amazon.textract.pdf.PageLines;
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.model.*;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Asynchronous Amazon Textract text detection job of a document in S3, whose lines are read page by page.
+ *
+ * The job runs on Textract once started, so the caller can do something else (e.g. download the document) before
+ * waiting for it. The results are then read {@value #MAX_RESULTS} blocks at a time (GetDocumentTextDetection), and each
+ * page of the document is handed over as soon as all its lines were read, instead of once the whole result was: only
+ * the lines of one page are held at once, and the next blocks are fetched while a page is handed over.
+ *
+ * Textract returns the blocks in the order of the pages, so a page is complete when a block of a later page is read,
+ * or when there are no more blocks.
+ */
+public class TextDetectionJob {
+
+    private static final int MAX_RESULTS = 1000;
+
+    // Fetches the next blocks of results while the caller handles the current ones
+    private static final ExecutorService prefetcher = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "textract-results-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Receives the lines of each page of the document, in order.
+     */
+    public interface PageConsumer {
+        void accept(int pageIndex, PageLines lines) throws IOException;
+    }
+
+    private final AmazonTextract textract;
+    private final TextractJobTracker jobTracker;
+    private final String jobId;
+
+    private TextDetectionJob(AmazonTextract textract, TextractJobTracker jobTracker, String jobId) {
+        this.textract = textract;
+        this.jobTracker = jobTracker;
+        this.jobId = jobId;
+    }
+
+    /**
+     * Start the text detection of the document; it runs on Textract until {@link #await()}.
+     */
+    public static TextDetectionJob start(AmazonTextract textract, TextractJobTracker jobTracker, String bucketName,
+                                         String documentName) {
+        StartDocumentTextDetectionRequest req = new StartDocumentTextDetectionRequest()
+                .withDocumentLocation(new DocumentLocation()
+                        .withS3Object(new S3Object()
+                                .withBucket(bucketName)
+                                .withName(documentName)))
+                .withJobTag("DetectingText")
+                .withNotificationChannel(jobTracker.getNotificationChannel());
+
+        String jobId = textract.startDocumentTextDetection(req).getJobId();
+        System.out.println("Text detection job started with Id: " + jobId);
+        return new TextDetectionJob(textract, jobTracker, jobId);
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * Wait for the job to complete, notified or polled by the shared job tracker.
+     */
+    public void await() throws InterruptedException {
+        String jobStatus;
+        try {
+            jobStatus = jobTracker.track(jobId).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not track text detection job " + jobId, e.getCause());
+        }
+        if (!jobStatus.equals("SUCCEEDED") && !jobStatus.equals("PARTIAL_SUCCESS")) {
+            throw new IllegalStateException("Text detection job " + jobId + " finished with status " + jobStatus);
+        }
+    }
+
+    /**
+     * Stop waiting for the job, e.g. as its lines are not needed anymore: Textract cannot cancel it, but it is still
+     * tracked until it completes, so that its notification is consumed.
+     */
+    public void abandon() {
+        jobTracker.track(jobId);
+    }
+
+    /**
+     * Read the lines of the completed job, and hand them over page after page, from the first one; pages without
+     * lines are handed over too (with no lines).
+     *
+     * @return number of pages handed over
+     */
+    public int readPages(PageConsumer consumer) throws IOException {
+        int pageNumber = 1;
+        PageLines lines = new PageLines();
+        boolean anyBlock = false;
+        int documentPages = 0;
+
+        CompletableFuture<GetDocumentTextDetectionResult> next = fetch(null);
+        while (next != null) {
+            GetDocumentTextDetectionResult response = join(next);
+            //Fetch the next blocks while these are handed over
+            next = response.getNextToken() != null ? fetch(response.getNextToken()) : null;
+            if (response.getDocumentMetadata() != null && response.getDocumentMetadata().getPages() != null) {
+                documentPages = response.getDocumentMetadata().getPages();
+            }
+
+            for (Block block : response.getBlocks()) {
+                int blockPage = block.getPage() != null ? block.getPage() : pageNumber;
+                if (blockPage < pageNumber) {
+                    throw new IllegalStateException("Blocks of text detection job " + jobId + " are not in page order:"
+                            + " block of page " + blockPage + " after page " + pageNumber);
+                }
+                //Every line of the previous pages was read
+                while (blockPage > pageNumber) {
+                    consumer.accept(pageNumber - 1, lines);
+                    lines = new PageLines();
+                    pageNumber++;
+                }
+                anyBlock = true;
+                TextractOcrEngine.addLine(lines, block);
+            }
+        }
+
+        if (!anyBlock && documentPages == 0) {
+            return 0;
+        }
+        consumer.accept(pageNumber - 1, lines);
+        //Trailing pages without any block
+        while (pageNumber < documentPages) {
+            pageNumber++;
+            consumer.accept(pageNumber - 1, new PageLines());
+        }
+        return pageNumber;
+    }
+
+    private CompletableFuture<GetDocumentTextDetectionResult> fetch(String paginationToken) {
+        GetDocumentTextDetectionRequest request = new GetDocumentTextDetectionRequest()
+                .withJobId(jobId)
+                .withMaxResults(MAX_RESULTS)
+                .withNextToken(paginationToken);
+        return CompletableFuture.supplyAsync(() -> textract.getDocumentTextDetection(request), prefetcher);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
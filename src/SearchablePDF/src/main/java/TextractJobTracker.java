@@ -0,0 +1,221 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.model.GetDocumentTextDetectionRequest;
+import com.amazonaws.services.textract.model.NotificationChannel;
+import java.io.Closeable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+
+/**
+ * Tracks the completion of asynchronous Amazon Textract text detection jobs, many at once, with few threads.
+ *
+ * Completion is learned from the notification channel when one is configured (see {@link JobCompletionSource}), and
+ * otherwise by polling each job with an adaptive backoff: first after a second, then less and less often. When
+ * notifications are available, polling still runs as a (slow) fallback in case a notification is lost.
+ *
+ * The default instance is configured from these (optional) envars:
+ * <ul>
+ * <li>TEXTRACT_SNS_TOPIC_ARN and TEXTRACT_SNS_ROLE_ARN: notification channel given to Textract when starting jobs</li>
+ * <li>TEXTRACT_SQS_QUEUE_URL: queue subscribed to that topic, where the notifications are received from</li>
+ * </ul>
+ */
+public class TextractJobTracker implements Closeable {
+
+    private static final long MIN_POLL_MILLIS = 1000;
+    private static final long MAX_POLL_MILLIS = 30000;
+    private static final long FALLBACK_POLL_MILLIS = 60000;
+
+    private static final int MAX_EARLY_COMPLETIONS = 10000;
+
+    private static TextractJobTracker defaultInstance;
+
+    private final AmazonTextract textract;
+    private final NotificationChannel notificationChannel;
+    private final JobCompletionSource notifications;
+
+    private final ScheduledExecutorService poller;
+    private final Map<String, CompletableFuture<String>> jobs = new ConcurrentHashMap<>();
+
+    // Notifications received for jobs not tracked (yet), e.g. completed before track was called; not acknowledged until
+    // then, as they may be of jobs of another process
+    private final Map<String, JobCompletionSource.JobCompletion> earlyCompletions =
+            new LinkedHashMap<String, JobCompletionSource.JobCompletion>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JobCompletionSource.JobCompletion> eldest) {
+            return size() > MAX_EARLY_COMPLETIONS;
+        }
+    };
+
+    // Jobs of this tracker that completed lately: their notifications, if received late or again, are acknowledged
+    private final Map<String, Boolean> recentlyDone = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_EARLY_COMPLETIONS;
+        }
+    };
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param textract            client used to poll the jobs
+     * @param notificationChannel channel to set when starting jobs; null to only poll
+     * @param notifications       where notifications of that channel are received from; null to only poll
+     */
+    public TextractJobTracker(AmazonTextract textract, NotificationChannel notificationChannel,
+                              JobCompletionSource notifications) {
+        this.textract = textract;
+        this.notificationChannel = notificationChannel;
+        this.notifications = notifications;
+
+        this.poller = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "textract-job-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (notifications != null) {
+            Thread listener = new Thread(this::listen, "textract-job-listener");
+            listener.setDaemon(true);
+            listener.start();
+        }
+    }
+
+    public static synchronized TextractJobTracker getDefault() {
+        if (defaultInstance == null) {
+            AwsClients clients = AwsClients.getDefault();
+            Optional<String> topicArn = Optional.ofNullable(System.getenv("TEXTRACT_SNS_TOPIC_ARN"));
+            Optional<String> roleArn = Optional.ofNullable(System.getenv("TEXTRACT_SNS_ROLE_ARN"));
+            Optional<String> queueUrl = Optional.ofNullable(System.getenv("TEXTRACT_SQS_QUEUE_URL"));
+
+            if (topicArn.isPresent() && roleArn.isPresent() && queueUrl.isPresent()) {
+                defaultInstance = new TextractJobTracker(clients.textract(),
+                        new NotificationChannel().withSNSTopicArn(topicArn.get()).withRoleArn(roleArn.get()),
+                        new SqsJobCompletionQueue(clients.sqs(), queueUrl.get()));
+            } else {
+                defaultInstance = new TextractJobTracker(clients.textract(), null, null);
+            }
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @return the channel to set on StartDocumentTextDetectionRequest, or null if there is none
+     */
+    public NotificationChannel getNotificationChannel() {
+        return notificationChannel;
+    }
+
+    /**
+     * Start tracking a job.
+     *
+     * @return future completed with the final job status (SUCCEEDED, PARTIAL_SUCCESS, FAILED, ...)
+     */
+    public CompletableFuture<String> track(String jobId) {
+        CompletableFuture<String> job = new CompletableFuture<>();
+        job.whenComplete((status, e) -> {
+            synchronized (earlyCompletions) {
+                jobs.remove(jobId);
+                recentlyDone.put(jobId, Boolean.TRUE);
+            }
+        });
+
+        JobCompletionSource.JobCompletion earlyCompletion;
+        synchronized (earlyCompletions) {
+            jobs.put(jobId, job);
+            earlyCompletion = earlyCompletions.remove(jobId);
+        }
+        if (earlyCompletion != null) {
+            job.complete(earlyCompletion.status);
+            acknowledge(earlyCompletion);
+        } else {
+            schedulePoll(jobId, job, notifications == null ? MIN_POLL_MILLIS : FALLBACK_POLL_MILLIS);
+        }
+        return job;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        poller.shutdownNow();
+        jobs.values().forEach(job -> job.completeExceptionally(new CancellationException("Job tracker closed")));
+    }
+
+    // -------------------------------------------------------------------------
+
+    private void schedulePoll(String jobId, CompletableFuture<String> job, long delayMillis) {
+        poller.schedule(() -> {
+            if (job.isDone()) {
+                return;
+            }
+            try {
+                String status = textract.getDocumentTextDetection(new GetDocumentTextDetectionRequest()
+                        .withJobId(jobId)
+                        .withMaxResults(1))
+                        .getJobStatus();
+
+                if (status.equals("IN_PROGRESS")) {
+                    long nextDelayMillis = notifications == null
+                            ? Math.min(MAX_POLL_MILLIS, delayMillis * 3 / 2)
+                            : FALLBACK_POLL_MILLIS;
+                    schedulePoll(jobId, job, nextDelayMillis);
+                } else {
+                    job.complete(status);
+                }
+            } catch (AmazonServiceException e) {
+                if (RetryUtils.isThrottlingException(e) || RetryUtils.isRetryableServiceException(e)) {
+                    schedulePoll(jobId, job, MAX_POLL_MILLIS);
+                } else {
+                    job.completeExceptionally(e);
+                }
+            } catch (RuntimeException e) {
+                job.completeExceptionally(e);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void acknowledge(JobCompletionSource.JobCompletion completion) {
+        try {
+            notifications.acknowledge(completion);
+        } catch (RuntimeException e) {
+            //The notification is received again, and then acknowledged as its job is done
+            System.out.println("Could not acknowledge notification of job " + completion.jobId + ": " + e.getMessage());
+        }
+    }
+
+    private void listen() {
+        while (!closed) {
+            try {
+                for (JobCompletionSource.JobCompletion completion : notifications.receive()) {
+                    CompletableFuture<String> job;
+                    boolean done;
+                    synchronized (earlyCompletions) {
+                        job = jobs.get(completion.jobId);
+                        done = recentlyDone.containsKey(completion.jobId);
+                        if (job == null && !done) {
+                            earlyCompletions.put(completion.jobId, completion);
+                        }
+                    }
+                    if (job != null) {
+                        job.complete(completion.status);
+                    }
+                    if (job != null || done) {
+                        acknowledge(completion);
+                    }
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                //Polling still completes the jobs; back off a bit before listening again
+                System.out.println("Could not receive job notifications: " + e.getMessage());
+                try {
+                    TimeUnit.SECONDS.sleep(5);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import com.amazon.textract.pdf.PageLines;
+import com.amazon.textract.pdf.TextLine;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.textract.model.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * {@link OcrEngine} on the asynchronous Amazon Textract client (DetectDocumentText): calls wait for their turn in the
+ * {@link TextractRateLimiter} on a timer, not on a thread, and complete from the callbacks of the client.
+ *
+ * Also converts Textract blocks into lines, for the processors reading them otherwise (e.g. {@link TextDetectionJob}).
+ */
+public class TextractOcrEngine implements OcrEngine {
+
+    private final AwsClients clients;
+    private final TextractRateLimiter rateLimiter;
+
+    public TextractOcrEngine(AwsClients clients, TextractRateLimiter rateLimiter) {
+        this.clients = clients;
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public CompletableFuture<List<TextLine>> detectText(ByteBuffer imageBytes) {
+        return detectText(new DetectDocumentTextRequest()
+                .withDocument(new Document()
+                        .withBytes(imageBytes.duplicate())));
+    }
+
+    @Override
+    public CompletableFuture<List<TextLine>> detectText(String bucketName, String documentName) {
+        return detectText(new DetectDocumentTextRequest()
+                .withDocument(new Document()
+                        .withS3Object(new S3Object()
+                                .withName(documentName)
+                                .withBucket(bucketName))));
+    }
+
+    /**
+     * @return the lines among the blocks, in order
+     */
+    public static List<TextLine> lines(List<Block> blocks) {
+        List<TextLine> lines = new ArrayList<TextLine>();
+        for (Block block : blocks) {
+            if (isLine(block)) {
+                BoundingBox boundingBox = block.getGeometry().getBoundingBox();
+                lines.add(new TextLine(boundingBox.getLeft(),
+                        boundingBox.getTop(),
+                        boundingBox.getWidth(),
+                        boundingBox.getHeight(),
+                        block.getText()));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Add the block to the lines if it is a line; other blocks (e.g. words) are skipped.
+     */
+    public static void addLine(PageLines lines, Block block) {
+        if (isLine(block)) {
+            BoundingBox boundingBox = block.getGeometry().getBoundingBox();
+            lines.add(boundingBox.getLeft(),
+                    boundingBox.getTop(),
+                    boundingBox.getWidth(),
+                    boundingBox.getHeight(),
+                    block.getText());
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    private CompletableFuture<List<TextLine>> detectText(DetectDocumentTextRequest request) {
+        return rateLimiter.callAsync("DetectDocumentText", () -> {
+            CompletableFuture<DetectDocumentTextResult> result = new CompletableFuture<>();
+            clients.textractAsync().detectDocumentTextAsync(request,
+                    new AsyncHandler<DetectDocumentTextRequest, DetectDocumentTextResult>() {
+                        @Override
+                        public void onError(Exception exception) {
+                            result.completeExceptionally(exception);
+                        }
+
+                        @Override
+                        public void onSuccess(DetectDocumentTextRequest request, DetectDocumentTextResult response) {
+                            result.complete(response);
+                        }
+                    });
+            return result;
+        }).thenApply(result -> lines(result.getBlocks()));
+    }
+
+    private static boolean isLine(Block block) {
+        return block.getBlockType().equals("LINE");
+    }
+}
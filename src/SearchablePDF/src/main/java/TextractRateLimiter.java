@@ -0,0 +1,290 @@
+import com.amazonaws.AbortedException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.ResponseMetadata;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.textract.AbstractAmazonTextract;
+import com.amazonaws.services.textract.AmazonTextract;
+import com.amazonaws.services.textract.model.*;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide rate limiter in front of every Amazon Textract call, so that concurrent pages and files stay within the
+ * transactions per second (TPS) quotas of the account instead of failing, or retrying all at once.
+ *
+ * Each operation has its own token bucket, as Textract has a quota per operation. Its rate adapts AIMD-style: it is
+ * halved when Textract throttles a call (at most once per second, as the calls in flight are throttled together),
+ * and increased back by about {@value #ADDITIVE_INCREASE_PER_SECOND} TPS per second of successful calls, up to the
+ * configured rate. Throttled calls wait for a token again and are retried, up to maxAttempts in total.
+ *
+ * Asynchronous calls ({@link #callAsync}) share the same budgets, but wait for their token on a timer instead of a
+ * thread.
+ *
+ * The clients of {@link AwsClients#fromEnvironment()} go through the default limiter, configured from these
+ * (optional) envars, which should be set to the quotas of the account:
+ * <ul>
+ * <li>TEXTRACT_TPS_DETECT: DetectDocumentText (and AnalyzeDocument) calls per second (default: 10)</li>
+ * <li>TEXTRACT_TPS_START: StartDocumentTextDetection (and StartDocumentAnalysis) calls per second (default: 5)</li>
+ * <li>TEXTRACT_TPS_GET: GetDocumentTextDetection (and GetDocumentAnalysis) calls per second (default: 10)</li>
+ * <li>TEXTRACT_THROTTLE_MAX_ATTEMPTS (default: 8)</li>
+ * </ul>
+ */
+public class TextractRateLimiter {
+
+    private static final double ADDITIVE_INCREASE_PER_SECOND = 0.5;
+    private static final double MULTIPLICATIVE_DECREASE = 0.5;
+    private static final long DECREASE_COOLDOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double MIN_RATE = 0.1;
+
+    private static TextractRateLimiter defaultInstance;
+
+    // Starts the asynchronous calls once their token is due
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "textract-rate-limiter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Budget> budgets = new ConcurrentHashMap<>();
+    private final int maxAttempts;
+
+    /**
+     * @param detectRate  max DetectDocumentText (and AnalyzeDocument) calls per second
+     * @param startRate   max StartDocumentTextDetection (and StartDocumentAnalysis) calls per second
+     * @param getRate     max GetDocumentTextDetection (and GetDocumentAnalysis) calls per second
+     * @param maxAttempts attempts of a call that Textract throttles, including the first one
+     */
+    public TextractRateLimiter(double detectRate, double startRate, double getRate, int maxAttempts) {
+        if (detectRate <= 0 || startRate <= 0 || getRate <= 0 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Textract rates and max attempts must be positive");
+        }
+        budgets.put("DetectDocumentText", new Budget("DetectDocumentText", detectRate));
+        budgets.put("StartDocumentTextDetection", new Budget("StartDocumentTextDetection", startRate));
+        budgets.put("GetDocumentTextDetection", new Budget("GetDocumentTextDetection", getRate));
+        budgets.put("AnalyzeDocument", new Budget("AnalyzeDocument", detectRate));
+        budgets.put("StartDocumentAnalysis", new Budget("StartDocumentAnalysis", startRate));
+        budgets.put("GetDocumentAnalysis", new Budget("GetDocumentAnalysis", getRate));
+        this.maxAttempts = maxAttempts;
+    }
+
+    public static synchronized TextractRateLimiter getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new TextractRateLimiter(
+                    Optional.ofNullable(System.getenv("TEXTRACT_TPS_DETECT")).map(Double::parseDouble).orElse(10.0),
+                    Optional.ofNullable(System.getenv("TEXTRACT_TPS_START")).map(Double::parseDouble).orElse(5.0),
+                    Optional.ofNullable(System.getenv("TEXTRACT_TPS_GET")).map(Double::parseDouble).orElse(10.0),
+                    Optional.ofNullable(System.getenv("TEXTRACT_THROTTLE_MAX_ATTEMPTS")).map(Integer::parseInt).orElse(8));
+        }
+        return defaultInstance;
+    }
+
+    /**
+     * @return a client making every call of the given client through this limiter
+     */
+    public AmazonTextract wrap(AmazonTextract textract) {
+        return new RateLimitedTextract(textract);
+    }
+
+    /**
+     * @return current rate of the operation (e.g. "DetectDocumentText"), in calls per second
+     */
+    public double getRate(String operation) {
+        return budgets.get(operation).getRate();
+    }
+
+    /**
+     * Make a call of the operation: wait for a token of its budget, and retry while Textract throttles it.
+     */
+    public <T> T call(String operation, Supplier<T> call) {
+        Budget budget = budgets.get(operation);
+        for (int attempt = 1; ; attempt++) {
+            budget.acquire();
+            try {
+                T result = call.get();
+                budget.onSuccess();
+                return result;
+            } catch (AmazonServiceException e) {
+                if (!RetryUtils.isThrottlingException(e) || attempt >= maxAttempts) {
+                    throw e;
+                }
+                budget.onThrottled();
+            }
+        }
+    }
+
+    /**
+     * Same as {@link #call}, without blocking: the call is started once a token of its budget is due, and started
+     * again while Textract throttles it.
+     *
+     * @param call starts the call (e.g. on an asynchronous client), and returns its result
+     */
+    public <T> CompletableFuture<T> callAsync(String operation, Supplier<CompletableFuture<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        callAsync(budgets.get(operation), call, 1, result);
+        return result;
+    }
+
+    // -------------------------------------------------------------------------
+
+    private <T> void callAsync(Budget budget, Supplier<CompletableFuture<T>> call, int attempt,
+                               CompletableFuture<T> result) {
+        Runnable start = () -> {
+            CompletableFuture<T> attemptResult;
+            try {
+                attemptResult = call.get();
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+                return;
+            }
+            attemptResult.whenComplete((value, error) -> {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (cause == null) {
+                    budget.onSuccess();
+                    result.complete(value);
+                } else if (cause instanceof AmazonServiceException
+                        && RetryUtils.isThrottlingException((AmazonServiceException) cause) && attempt < maxAttempts) {
+                    budget.onThrottled();
+                    callAsync(budget, call, attempt + 1, result);
+                } else {
+                    result.completeExceptionally(cause);
+                }
+            });
+        };
+
+        long waitNanos = budget.reserve();
+        if (waitNanos > 0) {
+            scheduler.schedule(start, waitNanos, TimeUnit.NANOSECONDS);
+        } else {
+            start.run();
+        }
+    }
+
+    /**
+     * Token bucket of an operation. Tokens may go negative: callers reserve a token and then wait until it is due, so
+     * that they are served in order.
+     */
+    private static class Budget {
+        final String operation;
+        final double maxRate;
+
+        private double rate;
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+        private long lastDecreaseNanos = lastRefillNanos - DECREASE_COOLDOWN_NANOS;
+
+        Budget(String operation, double maxRate) {
+            this.operation = operation;
+            this.maxRate = maxRate;
+            this.rate = maxRate;
+            this.tokens = burst();
+        }
+
+        void acquire() {
+            long waitNanos = reserve();
+            if (waitNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AbortedException("Interrupted while waiting for the Textract " + operation + " budget", e);
+                }
+            }
+        }
+
+        /**
+         * @return nanoseconds until the reserved token is due
+         */
+        synchronized long reserve() {
+            refill(System.nanoTime());
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+        }
+
+        synchronized void onSuccess() {
+            //About +ADDITIVE_INCREASE_PER_SECOND per second when calls succeed at the current rate
+            rate = Math.min(maxRate, rate + ADDITIVE_INCREASE_PER_SECOND / rate);
+        }
+
+        synchronized void onThrottled() {
+            long now = System.nanoTime();
+            if (now - lastDecreaseNanos < DECREASE_COOLDOWN_NANOS) {
+                return;
+            }
+            refill(now);
+            lastDecreaseNanos = now;
+            rate = Math.max(MIN_RATE, rate * MULTIPLICATIVE_DECREASE);
+            tokens = Math.min(tokens, 0);
+            System.out.println(String.format("Textract throttled %s: lowered to %.2f calls per second", operation, rate));
+        }
+
+        synchronized double getRate() {
+            return rate;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst(), tokens + (now - lastRefillNanos) / 1e9 * rate);
+            lastRefillNanos = now;
+        }
+
+        // At most a second worth of calls at once
+        private double burst() {
+            return Math.max(1, rate);
+        }
+    }
+
+    private class RateLimitedTextract extends AbstractAmazonTextract {
+        private final AmazonTextract textract;
+
+        RateLimitedTextract(AmazonTextract textract) {
+            this.textract = textract;
+        }
+
+        @Override
+        public AnalyzeDocumentResult analyzeDocument(AnalyzeDocumentRequest request) {
+            return call("AnalyzeDocument", () -> textract.analyzeDocument(request));
+        }
+
+        @Override
+        public DetectDocumentTextResult detectDocumentText(DetectDocumentTextRequest request) {
+            return call("DetectDocumentText", () -> textract.detectDocumentText(request));
+        }
+
+        @Override
+        public GetDocumentAnalysisResult getDocumentAnalysis(GetDocumentAnalysisRequest request) {
+            return call("GetDocumentAnalysis", () -> textract.getDocumentAnalysis(request));
+        }
+
+        @Override
+        public GetDocumentTextDetectionResult getDocumentTextDetection(GetDocumentTextDetectionRequest request) {
+            return call("GetDocumentTextDetection", () -> textract.getDocumentTextDetection(request));
+        }
+
+        @Override
+        public StartDocumentAnalysisResult startDocumentAnalysis(StartDocumentAnalysisRequest request) {
+            return call("StartDocumentAnalysis", () -> textract.startDocumentAnalysis(request));
+        }
+
+        @Override
+        public StartDocumentTextDetectionResult startDocumentTextDetection(StartDocumentTextDetectionRequest request) {
+            return call("StartDocumentTextDetection", () -> textract.startDocumentTextDetection(request));
+        }
+
+        @Override
+        public void shutdown() {
+            textract.shutdown();
+        }
+
+        @Override
+        public ResponseMetadata getCachedResponseMetadata(AmazonWebServiceRequest request) {
+            return textract.getCachedResponseMetadata(request);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.amazon.textract.pdf;
+
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-font cache of glyph advances (in glyph space units, i.e. 1/1000 em).
+ *
+ * Measuring a string with {@link PDFont#getStringWidth(String)} encodes the whole string and looks every code up again.
+ * Here each code point is looked up once per font; the widths are summed in the same order as PDFBox does, so the
+ * result is exactly the same.
+ */
+class GlyphAdvanceCache {
+
+    private static final Map<PDFont, GlyphAdvanceCache> CACHES = new ConcurrentHashMap<>();
+
+    private final PDFont font;
+
+    // Fast path for latin-1 code points; NaN means not looked up yet
+    private final float[] latinAdvances = new float[256];
+    private final Map<Integer, Float> otherAdvances = new ConcurrentHashMap<>();
+
+    private final float boundingBoxHeight;
+
+    private GlyphAdvanceCache(PDFont font) {
+        this.font = font;
+        Arrays.fill(latinAdvances, Float.NaN);
+        this.boundingBoxHeight = font.getFontDescriptor().getFontBoundingBox().getHeight();
+    }
+
+    static GlyphAdvanceCache of(PDFont font) {
+        return CACHES.computeIfAbsent(font, GlyphAdvanceCache::new);
+    }
+
+    /**
+     * @return same as {@code font.getStringWidth(text)}
+     * @throws IllegalArgumentException if the font cannot encode a character of the text, like PDFBox does
+     */
+    float getStringWidth(String text) throws IOException {
+        float width = 0;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            width += getAdvance(codePoint);
+            i += Character.charCount(codePoint);
+        }
+        return width;
+    }
+
+    /**
+     * @return same as {@code font.getStringWidth(lines.getText(line))}, without creating the String
+     */
+    float getStringWidth(PageLines lines, int line) throws IOException {
+        float width = 0;
+        int end = lines.getTextEnd(line);
+        for (int i = lines.getTextStart(line); i < end; ) {
+            int codePoint = lines.codePointAt(i, end);
+            width += getAdvance(codePoint);
+            i += Character.charCount(codePoint);
+        }
+        return width;
+    }
+
+    /**
+     * @return height of the font bounding box
+     */
+    float getBoundingBoxHeight() {
+        return boundingBoxHeight;
+    }
+
+    private float getAdvance(int codePoint) throws IOException {
+        if (codePoint < latinAdvances.length) {
+            float advance = latinAdvances[codePoint];
+            if (Float.isNaN(advance)) {
+                advance = lookUpAdvance(codePoint);
+                latinAdvances[codePoint] = advance;
+            }
+            return advance;
+        }
+
+        Float advance = otherAdvances.get(codePoint);
+        if (advance == null) {
+            advance = lookUpAdvance(codePoint);
+            otherAdvances.put(codePoint, advance);
+        }
+        return advance;
+    }
+
+    private float lookUpAdvance(int codePoint) throws IOException {
+        return font.getStringWidth(new String(Character.toChars(codePoint)));
+    }
+}
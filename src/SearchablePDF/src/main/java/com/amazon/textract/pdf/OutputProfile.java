@@ -0,0 +1,180 @@
+package com.amazon.textract.pdf;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Optional;
+
+/**
+ * How page images are embedded in the output pdf.
+ *
+ * Most scans are black and white office documents, for which a full color image is many times larger than needed:
+ * <ul>
+ * <li>COLOR: as rendered (the default)</li>
+ * <li>GRAYSCALE: 8-bit gray, about a third of the size of color</li>
+ * <li>BILEVEL: black and white, compressed with CCITT Group 4; the smallest by far for text pages</li>
+ * <li>AUTO: per page, the smallest of the above that keeps its content (see {@link #resolve(BufferedImage)})</li>
+ * </ul>
+ */
+public enum OutputProfile {
+    COLOR, GRAYSCALE, BILEVEL, AUTO;
+
+    // A page is colored when more than this ratio of its pixels have a visible chroma
+    private static final int MIN_CHROMA = 32;
+    private static final double MAX_COLORED_RATIO = 0.001;
+
+    // A gray page is bilevel when at most this ratio of its pixels are mid-tones (anti-aliasing of the text aside)
+    private static final int MID_TONE_LOW = 64;
+    private static final int MID_TONE_HIGH = 192;
+    private static final double MAX_MID_TONE_RATIO = 0.05;
+
+    private static final int MAX_SAMPLES = 250000;
+
+    /**
+     * Profile from the envar PDF_OUTPUT_PROFILE (COLOR, GRAYSCALE, BILEVEL or AUTO; default: COLOR).
+     */
+    public static OutputProfile fromEnvironment() {
+        return Optional.ofNullable(System.getenv("PDF_OUTPUT_PROFILE"))
+                .map(String::toUpperCase).map(OutputProfile::valueOf).orElse(COLOR);
+    }
+
+    /**
+     * @return the profile to embed this image with: this one, or for AUTO, the one detected from a sample of the
+     * pixels of the image
+     */
+    public OutputProfile resolve(BufferedImage image) {
+        if (this != AUTO) {
+            return this;
+        }
+
+        int step = Math.max(1, (int) Math.sqrt((double) image.getWidth() * image.getHeight() / MAX_SAMPLES));
+        long samples = 0;
+        long colored = 0;
+        long midTones = 0;
+        for (int y = 0; y < image.getHeight(); y += step) {
+            for (int x = 0; x < image.getWidth(); x += step) {
+                int rgb = image.getRGB(x, y);
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                if (Math.max(r, Math.max(g, b)) - Math.min(r, Math.min(g, b)) > MIN_CHROMA) {
+                    colored++;
+                }
+                int luminance = luminance(r, g, b);
+                if (luminance > MID_TONE_LOW && luminance < MID_TONE_HIGH) {
+                    midTones++;
+                }
+                samples++;
+            }
+        }
+
+        if (colored > samples * MAX_COLORED_RATIO) {
+            return COLOR;
+        }
+        return midTones > samples * MAX_MID_TONE_RATIO ? GRAYSCALE : BILEVEL;
+    }
+
+    /**
+     * @return the image converted to this (resolved) profile: 8-bit gray for GRAYSCALE, 1-bit (thresholded with
+     * Otsu's method) for BILEVEL, or else the image itself
+     */
+    public BufferedImage convert(BufferedImage image) {
+        switch (this) {
+            case GRAYSCALE:
+                return toGrayscale(image);
+            case BILEVEL:
+                return isBilevel(image) ? image : toBilevel(toGrayscale(image));
+            case AUTO:
+                return resolve(image).convert(image);
+            default:
+                return image;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    private static boolean isBilevel(BufferedImage image) {
+        return image.getType() == BufferedImage.TYPE_BYTE_BINARY && image.getColorModel().getPixelSize() == 1;
+    }
+
+    private static int luminance(int r, int g, int b) {
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+
+    private static BufferedImage toGrayscale(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            return image;
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        BufferedImage grayImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] gray = ((DataBufferByte) grayImage.getRaster().getDataBuffer()).getData();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int rgb = row[x];
+                gray[y * width + x] = (byte) luminance((rgb >> 16) & 0xff, (rgb >> 8) & 0xff, rgb & 0xff);
+            }
+        }
+        return grayImage;
+    }
+
+    private static BufferedImage toBilevel(BufferedImage grayImage) {
+        int width = grayImage.getWidth();
+        int height = grayImage.getHeight();
+        byte[] gray = ((DataBufferByte) grayImage.getRaster().getDataBuffer()).getData();
+        int threshold = otsuThreshold(gray);
+
+        //Packed 1 bit per pixel, most significant bit first; 0 is black and 1 is white
+        BufferedImage bilevelImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_BINARY);
+        byte[] bits = ((DataBufferByte) bilevelImage.getRaster().getDataBuffer()).getData();
+        int bytesPerRow = (width + 7) / 8;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if ((gray[y * width + x] & 0xff) > threshold) {
+                    bits[y * bytesPerRow + x / 8] |= (byte) (0x80 >> (x % 8));
+                }
+            }
+        }
+        return bilevelImage;
+    }
+
+    /**
+     * @return the gray level that best separates dark (text) from light (paper) pixels
+     */
+    private static int otsuThreshold(byte[] gray) {
+        long[] histogram = new long[256];
+        for (byte level : gray) {
+            histogram[level & 0xff]++;
+        }
+
+        double sum = 0;
+        for (int level = 0; level < 256; level++) {
+            sum += (double) level * histogram[level];
+        }
+
+        long darkCount = 0;
+        double darkSum = 0;
+        double bestVariance = -1;
+        int threshold = 127;
+        for (int level = 0; level < 256; level++) {
+            darkCount += histogram[level];
+            if (darkCount == 0) {
+                continue;
+            }
+            long lightCount = gray.length - darkCount;
+            if (lightCount == 0) {
+                break;
+            }
+            darkSum += (double) level * histogram[level];
+            double darkMean = darkSum / darkCount;
+            double lightMean = (sum - darkSum) / lightCount;
+            double variance = (double) darkCount * lightCount * (darkMean - lightMean) * (darkMean - lightMean);
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                threshold = level;
+            }
+        }
+        return threshold;
+    }
+}
@@ -1,136 +1,465 @@
 package com.amazon.textract.pdf;
 
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.font.PDFont;
 import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.image.CCITTFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.pdmodel.graphics.state.RenderingMode;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.List;
 
 public class PDFDocument {
 
     final PDFont font = PDType1Font.COURIER;
 
+    private final GlyphAdvanceCache glyphAdvances = GlyphAdvanceCache.of(font);
+
     private PDDocument document;
 
+    private OutputProfile outputProfile = OutputProfile.fromEnvironment();
+
+    // Directory of the scratch file PDFBox spills to past the memory budget; null when kept in memory only
+    private File scratchDirectory;
+    private long peakSpilledBytes = 0;
+    private long peakHeapBytes = 0;
+
+    // Documents pages were imported from; they are read while saving, so they are closed along with this one
+    private final List<PDDocument> sourceDocuments = new ArrayList<>();
+
     public PDFDocument(){
-        this.document = new PDDocument();
+        this(defaultMemoryUsageSetting());
     }
 
     public PDFDocument(InputStream inputDocument) throws IOException {
-        this.document = PDDocument.load(inputDocument);
+        this(inputDocument, defaultMemoryUsageSetting());
+    }
+
+    /**
+     * @param memoryUsageSetting where PDFBox keeps the streams of the document (e.g. embedded page images); use
+     *                           {@link MemoryUsageSetting#setupMixed(long)} to spill to a scratch file past a budget
+     */
+    public PDFDocument(MemoryUsageSetting memoryUsageSetting) {
+        this.document = new PDDocument(withScratchDirectory(memoryUsageSetting));
+    }
+
+    public PDFDocument(InputStream inputDocument, MemoryUsageSetting memoryUsageSetting) throws IOException {
+        MemoryUsageSetting scratchMemoryUsageSetting = withScratchDirectory(memoryUsageSetting);
+        try {
+            this.document = PDDocument.load(inputDocument, scratchMemoryUsageSetting);
+        } catch (IOException | RuntimeException e) {
+            deleteScratchDirectory();
+            throw e;
+        }
+    }
+
+    /**
+     * Memory setting from the envar PDF_MAX_MAIN_MEMORY_MB: when set, documents keep at most that many megabytes of
+     * streams in heap and spill the rest to a temporary scratch file. When unset, everything is kept in heap.
+     */
+    public static MemoryUsageSetting defaultMemoryUsageSetting() {
+        String maxMainMemoryMegabytes = System.getenv("PDF_MAX_MAIN_MEMORY_MB");
+        if (maxMainMemoryMegabytes == null) {
+            return MemoryUsageSetting.setupMainMemoryOnly();
+        }
+        return MemoryUsageSetting.setupMixed(Long.parseLong(maxMainMemoryMegabytes) * 1024 * 1024);
+    }
+
+    private MemoryUsageSetting withScratchDirectory(MemoryUsageSetting memoryUsageSetting) {
+        if (!memoryUsageSetting.useTempFile()) {
+            return memoryUsageSetting;
+        }
+        //A scratch directory of its own, so that what this document spills can be measured
+        File parent = memoryUsageSetting.getTempDir() != null
+                ? memoryUsageSetting.getTempDir()
+                : new File(System.getProperty("java.io.tmpdir"));
+        try {
+            this.scratchDirectory = Files.createTempDirectory(parent.toPath(), "pdf-scratch").toFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return memoryUsageSetting.getPartitionedCopy(1).setTempDir(scratchDirectory);
+    }
+
+    public OutputProfile getOutputProfile() {
+        return outputProfile;
+    }
+
+    public void setOutputProfile(OutputProfile outputProfile) {
+        this.outputProfile = outputProfile;
     }
 
     public void addText(int pageIndex, List<TextLine> lines) throws IOException {
+        addText(pageIndex, PageLines.of(lines));
+    }
+
+    public void addText(int pageIndex, PageLines lines) throws IOException {
         PDPage page = document.getPage(pageIndex);
 
         float height = page.getMediaBox().getHeight();
 
         float width = page.getMediaBox().getWidth();
 
-        PDPageContentStream contentStream = new PDPageContentStream(document, page, PDPageContentStream.AppendMode.APPEND, false );
+        PDPageContentStream contentStream = new PDPageContentStream(document, page, PDPageContentStream.AppendMode.APPEND, true );
+
+        addTextLayer(contentStream, lines, width, height);
+
+        contentStream.close();
+
+        markForIncrementalUpdate(page);
+
+        updatePeaks();
+    }
+
+    /**
+     * Write the lines as invisible text, in a single text object: each line is positioned relative to the previous
+     * one, and the font is only set again when its size changes.
+     */
+    private void addTextLayer(PDPageContentStream contentStream, PageLines lines, float width, float height) throws IOException {
+        if (lines.isEmpty()) {
+            return;
+        }
+
         contentStream.setRenderingMode(RenderingMode.NEITHER);
+        contentStream.beginText();
+
+        int fontSize = -1;
+        float lineX = 0;
+        float lineY = 0;
+        for (int line = 0; line < lines.size(); line++) {
+            FontInfo fontInfo = calculateFontSize(lines, line, lines.getWidth(line)*width, lines.getHeight(line)*height);
+            if (fontInfo.fontSize != fontSize) {
+                fontSize = fontInfo.fontSize;
+                contentStream.setFont(this.font, fontSize);
+            }
 
-        for (TextLine cline : lines){
-            FontInfo fontInfo = calculateFontSize(cline.text, (float)cline.width*width, (float)cline.height*height);
+            float x = lines.getLeft(line)*width;
+            float y = (float)(height-height*(double)lines.getTop(line)-fontInfo.textHeight);
+            contentStream.newLineAtOffset(x - lineX, y - lineY);
+            lineX = x;
+            lineY = y;
 
-            //System.out.println("FontSize: " + fontInfo.fontSize + " => for text: " + cline.text);
-            contentStream.beginText();
-            contentStream.setFont(this.font, fontInfo.fontSize);
-            contentStream.newLineAtOffset((float)cline.left*width, (float)(height-height*cline.top-fontInfo.textHeight));
-            contentStream.showText(cline.text);
-            contentStream.endText();
+            contentStream.showText(lines.getText(line));
         }
 
-        contentStream.close();
+        contentStream.endText();
+    }
+
+    /**
+     * Flag what appending a content stream to the page changed, so that {@link #saveIncremental(OutputStream)} writes
+     * it: PDFBox only writes the flagged objects, and reaches them from the catalog down, through the page tree.
+     */
+    private void markForIncrementalUpdate(PDPage page) {
+        document.getDocumentCatalog().getCOSObject().setNeedToBeUpdated(true);
+
+        COSDictionary node = page.getCOSObject();
+        while (node != null) {
+            node.setNeedToBeUpdated(true);
+            markIfUpdatable(node.getDictionaryObject(COSName.KIDS));
+            node = (COSDictionary) node.getDictionaryObject(COSName.PARENT);
+        }
+
+        //The new content stream is appended to the /Contents array; the font, to the (maybe inherited) resources
+        markIfUpdatable(page.getCOSObject().getDictionaryObject(COSName.CONTENTS));
+        COSDictionary resources = page.getResources().getCOSObject();
+        resources.setNeedToBeUpdated(true);
+        markIfUpdatable(resources.getDictionaryObject(COSName.FONT));
+    }
+
+    private static void markIfUpdatable(COSBase object) {
+        if (object instanceof COSArray) {
+            ((COSArray) object).setNeedToBeUpdated(true);
+        } else if (object instanceof COSDictionary) {
+            ((COSDictionary) object).setNeedToBeUpdated(true);
+        }
+    }
+
+    /**
+     * Find the font size at which the text spans the width of its bounding box.
+     *
+     * Starting from 17pt, this is the largest smaller size whose text width still fits in the box when the text at
+     * 17pt is too wide, or else the smallest larger size whose text width fills the box. The text width is linear in
+     * the font size, so the size is computed from a single measurement of the text.
+     */
+    FontInfo calculateFontSize(String text, float bbWidth, float bbHeight) throws IOException {
+        return calculateFontSize(glyphAdvances.getStringWidth(text) / 1000, bbWidth, bbHeight);
+    }
+
+    FontInfo calculateFontSize(PageLines lines, int line, float bbWidth, float bbHeight) throws IOException {
+        float unitWidth = glyphAdvances.getStringWidth(lines, line) / 1000;
+        return calculateFontSize(unitWidth, bbWidth, bbHeight);
     }
 
-    private FontInfo calculateFontSize(String text, float bbWidth, float bbHeight) throws IOException {
+    private FontInfo calculateFontSize(float unitWidth, float bbWidth, float bbHeight) {
+
+        final int initialFontSize = 17;
 
-        //PDFont font = PDType1Font.TIMES_ROMAN;
+        float unitHeight = glyphAdvances.getBoundingBoxHeight() / 1000;
 
-        int fontSize = 17;
-        float textWidth = font.getStringWidth(text) / 1000 * fontSize;
-        float textHeight = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+        int fontSize = initialFontSize;
 
-        if(textWidth > bbWidth){
-            while(textWidth > bbWidth){
-                fontSize -= 1;
-                textWidth = font.getStringWidth(text) / 1000 * fontSize;
-                textHeight = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+        if (unitWidth > 0) {
+            if (unitWidth * fontSize > bbWidth) {
+                fontSize = (int) Math.min(initialFontSize - 1, Math.floor(bbWidth / unitWidth));
+                //Correct float rounding of the division, so the result is the one of stepping one point at a time
+                while (unitWidth * fontSize > bbWidth) {
+                    fontSize -= 1;
+                }
+                while (fontSize + 1 < initialFontSize && unitWidth * (fontSize + 1) <= bbWidth) {
+                    fontSize += 1;
+                }
             }
-        }
-        else if(textWidth < bbWidth){
-            while(textWidth < bbWidth){
-                fontSize += 1;
-                textWidth = font.getStringWidth(text) / 1000 * fontSize;
-                textHeight = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+            else if (unitWidth * fontSize < bbWidth) {
+                fontSize = (int) Math.max(initialFontSize + 1, Math.ceil(bbWidth / unitWidth));
+                while (unitWidth * fontSize < bbWidth) {
+                    fontSize += 1;
+                }
+                while (fontSize - 1 > initialFontSize && unitWidth * (fontSize - 1) >= bbWidth) {
+                    fontSize -= 1;
+                }
             }
         }
 
-        //System.out.println("Text height before returning font size: " + textHeight);
-
         FontInfo fi = new FontInfo();
         fi.fontSize = fontSize;
-        fi.textHeight = textHeight;
-        fi.textWidth = textWidth;
+        fi.textHeight = unitHeight * fontSize;
+        fi.textWidth = unitWidth * fontSize;
 
         return fi;
     }
 
+    /**
+     * Add a page with the image and its text layer. The image is embedded as imageType, after converting it to the
+     * output profile of this document (grayscale, or bilevel which is then embedded with CCITT G4 compression).
+     *
+     * The page is the size of the image, one point per pixel; see {@link #addPage(BufferedImage, ImageType, PageLines,
+     * PDRectangle)} for an image rendered from a page.
+     */
     public void addPage(BufferedImage image, ImageType imageType, List<TextLine> lines) throws IOException {
+        addPage(image, imageType, PageLines.of(lines), null);
+    }
 
-        float width = image.getWidth();
-        float height = image.getHeight();
+    public void addPage(BufferedImage image, ImageType imageType, PageLines lines) throws IOException {
+        addPage(image, imageType, lines, null);
+    }
 
-        PDRectangle box = new PDRectangle(width, height);
-        PDPage page = new PDPage(box);
-        page.setMediaBox(box);
-        this.document.addPage(page);
+    /**
+     * Same as {@link #addPage(BufferedImage, ImageType, List)}, on a page of the given size: the image is scaled to
+     * fill it. E.g. the {@link #renderedSize(PDPage)} of the page the image was rendered from, so that the page keeps
+     * its size whatever the resolution it was rendered at.
+     */
+    public void addPage(BufferedImage image, ImageType imageType, PageLines lines, PDRectangle pageSize)
+            throws IOException {
 
         PDImageXObject pdImage = null;
 
-        if(imageType == ImageType.JPEG){
+        OutputProfile profile = outputProfile.resolve(image);
+        image = profile.convert(image);
+
+        if(profile == OutputProfile.BILEVEL){
+            pdImage = CCITTFactory.createFromImage(this.document, image);
+        }
+        else if(imageType == ImageType.JPEG){
             pdImage = JPEGFactory.createFromImage(this.document, image);
         }
         else {
             pdImage = LosslessFactory.createFromImage(this.document, image);
         }
 
-        PDPageContentStream contentStream = new PDPageContentStream(document, page);
+        addPage(pdImage, lines, pageSize);
+    }
 
-        contentStream.drawImage(pdImage, 0, 0);
+    /**
+     * Add a page from an already encoded image, e.g. the very bytes sent to the OCR. A JPEG image is embedded as is,
+     * without decoding and encoding it again; a PNG image is decoded and embedded losslessly. The output profile is
+     * not applied.
+     */
+    public void addPage(byte[] encodedImage, ImageType imageType, List<TextLine> lines) throws IOException {
+        addPage(encodedImage, imageType, PageLines.of(lines), null);
+    }
 
-        contentStream.setRenderingMode(RenderingMode.NEITHER);
+    public void addPage(byte[] encodedImage, ImageType imageType, PageLines lines) throws IOException {
+        addPage(encodedImage, imageType, lines, null);
+    }
+
+    /**
+     * Same as {@link #addPage(byte[], ImageType, List)}, on a page of the given size (null: of the image, one point
+     * per pixel).
+     */
+    public void addPage(byte[] encodedImage, ImageType imageType, PageLines lines, PDRectangle pageSize)
+            throws IOException {
+
+        PDImageXObject pdImage = null;
 
-        for (TextLine cline : lines){
-            FontInfo fontInfo = calculateFontSize(cline.text, (float)cline.width*width, (float)cline.height*height);
-            contentStream.beginText();
-            contentStream.setFont(this.font, fontInfo.fontSize);
-            contentStream.newLineAtOffset((float)cline.left*width, (float)(height-height*cline.top-fontInfo.textHeight));
-            contentStream.showText(cline.text);
-            contentStream.endText();
+        if(imageType == ImageType.JPEG){
+            pdImage = JPEGFactory.createFromByteArray(this.document, encodedImage);
         }
+        else {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(encodedImage));
+            if (image == null) {
+                throw new IOException("Not a PNG image");
+            }
+            pdImage = LosslessFactory.createFromImage(this.document, image);
+        }
+
+        addPage(pdImage, lines, pageSize);
+    }
+
+    private void addPage(PDImageXObject pdImage, PageLines lines, PDRectangle pageSize) throws IOException {
+
+        float width = pageSize != null ? pageSize.getWidth() : pdImage.getWidth();
+        float height = pageSize != null ? pageSize.getHeight() : pdImage.getHeight();
+
+        PDRectangle box = new PDRectangle(width, height);
+        PDPage page = new PDPage(box);
+        page.setMediaBox(box);
+        this.document.addPage(page);
+
+        PDPageContentStream contentStream = new PDPageContentStream(document, page);
+
+        contentStream.drawImage(pdImage, 0, 0, width, height);
+
+        addTextLayer(contentStream, lines, width, height);
 
         contentStream.close();
+
+        updatePeaks();
+    }
+
+    /**
+     * Add a page of another document, e.g. a born-digital page that needs no OCR. Its content stream is copied into
+     * this document, with its boxes and rotation, but its resources (e.g. fonts and images) are shared, not copied, so
+     * the source document must stay open: it is closed when this document is closed.
+     */
+    public void importPage(PDDocument sourceDocument, int pageIndex) throws IOException {
+        if (!sourceDocuments.contains(sourceDocument)) {
+            sourceDocuments.add(sourceDocument);
+        }
+        PDPage sourcePage = sourceDocument.getPage(pageIndex);
+        PDPage page = this.document.importPage(sourcePage);
+        //Unlike the boxes and rotation, resources inherited from the page tree of the source document are not set on
+        //the page by importPage
+        if (!sourcePage.getCOSObject().containsKey(COSName.RESOURCES)) {
+            page.setResources(sourcePage.getResources());
+        }
+
+        updatePeaks();
+    }
+
+    /**
+     * @return the size of the page as rendered (e.g. by PDFRenderer): its crop box, turned by the rotation of the page
+     */
+    public static PDRectangle renderedSize(PDPage page) {
+        PDRectangle cropBox = page.getCropBox();
+        int rotation = page.getRotation();
+        if (rotation % 180 != 0) {
+            return new PDRectangle(cropBox.getHeight(), cropBox.getWidth());
+        }
+        return new PDRectangle(cropBox.getWidth(), cropBox.getHeight());
+    }
+
+    public int getNumberOfPages() {
+        return document.getNumberOfPages();
     }
 
     public void save(String path) throws IOException {
+        updatePeaks();
         this.document.save(new File(path));
     }
 
     public void save(OutputStream os) throws IOException {
+        updatePeaks();
         this.document.save(os);
     }
 
+    /**
+     * Save as an incremental update: the original bytes of the loaded document, unchanged, followed by a section with
+     * only the objects changed by {@link #addText(int, List)} (the new text layers). The cost of saving then depends
+     * on the amount of text added, not on the size of the original document.
+     *
+     * Only for documents loaded from an input stream; and os must not write to that same input.
+     */
+    public void saveIncremental(OutputStream os) throws IOException {
+        updatePeaks();
+        this.document.saveIncremental(os);
+    }
+
     public void close() throws IOException {
-        this.document.close();
+        updatePeaks();
+        try {
+            this.document.close();
+            for (PDDocument sourceDocument : sourceDocuments) {
+                sourceDocument.close();
+            }
+        } finally {
+            deleteScratchDirectory();
+        }
+    }
+
+    private void deleteScratchDirectory() {
+        if (scratchDirectory != null) {
+            File[] leftovers = scratchDirectory.listFiles();
+            if (leftovers != null) {
+                for (File leftover : leftovers) {
+                    leftover.delete();
+                }
+            }
+            scratchDirectory.delete();
+        }
+    }
+
+    /**
+     * @return the largest size the scratch file of this document reached, as sampled after each page; 0 when the
+     * document is kept in heap only
+     */
+    public long getPeakSpilledBytes() {
+        updatePeaks();
+        return peakSpilledBytes;
+    }
+
+    /**
+     * @return the largest heap usage of the JVM (uncollected garbage included), as sampled after each page of this
+     * document: the whole heap at one moment, not the sum of the peaks of its pools, reached at different moments
+     */
+    public long getPeakHeapBytes() {
+        updatePeaks();
+        return peakHeapBytes;
+    }
+
+    public String getMemoryReport() {
+        return "peak heap used (sampled after each page): " + getPeakHeapBytes() / (1024 * 1024) + " MB, "
+                + "spilled to scratch file: " + getPeakSpilledBytes() / (1024 * 1024) + " MB";
+    }
+
+    private void updatePeaks() {
+        peakHeapBytes = Math.max(peakHeapBytes, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+
+        if (scratchDirectory == null) {
+            return;
+        }
+        File[] scratchFiles = scratchDirectory.listFiles();
+        if (scratchFiles == null) {
+            return;
+        }
+        long spilledBytes = 0;
+        for (File scratchFile : scratchFiles) {
+            spilledBytes += scratchFile.length();
+        }
+        peakSpilledBytes = Math.max(peakSpilledBytes, spilledBytes);
     }
 }
@@ -0,0 +1,217 @@
+package com.amazon.textract.pdf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lines of text of a page, stored by column: the bounding boxes in four float arrays, and the texts one after the
+ * other in a single array. A page of lines is then a handful of arrays, instead of two objects per line (a
+ * {@link TextLine} and its String) that a large document holds by the millions.
+ *
+ * Like the JDK does for Strings, the texts are stored one byte per char as long as they are all latin-1, and in a
+ * char array once a line is not.
+ *
+ * Lines are read by index ({@code for (int i = 0; i < lines.size(); i++) lines.getLeft(i)...}), without allocating.
+ * The bounding boxes are ratios of the page width and height, like the ones of Amazon Textract.
+ */
+public final class PageLines {
+
+    private static final float[] NO_FLOATS = new float[0];
+    private static final int[] NO_INTS = new int[0];
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private float[] left = NO_FLOATS;
+    private float[] top = NO_FLOATS;
+    private float[] width = NO_FLOATS;
+    private float[] height = NO_FLOATS;
+    // End of the text of each line in chars; a line starts where the previous one ends
+    private int[] textEnd = NO_INTS;
+    // Texts as latin-1 bytes; null once a char is not latin-1, then they are in chars
+    private byte[] latin1 = NO_BYTES;
+    private char[] chars = null;
+
+    private int size = 0;
+    private int length = 0;
+
+    public PageLines() {
+    }
+
+    /**
+     * @param lineCapacity expected number of lines
+     * @param charCapacity expected number of chars of all the lines
+     */
+    public PageLines(int lineCapacity, int charCapacity) {
+        ensureLineCapacity(lineCapacity);
+        ensureCharCapacity(charCapacity);
+    }
+
+    public static PageLines of(List<TextLine> lines) {
+        int charCapacity = 0;
+        for (TextLine line : lines) {
+            charCapacity += line.text.length();
+        }
+        PageLines pageLines = new PageLines(lines.size(), charCapacity);
+        for (TextLine line : lines) {
+            pageLines.add(line.left, line.top, line.width, line.height, line.text);
+        }
+        return pageLines;
+    }
+
+    public void add(double left, double top, double width, double height, String text) {
+        ensureLineCapacity(size + 1);
+        ensureCharCapacity(length + text.length());
+        this.left[size] = (float) left;
+        this.top[size] = (float) top;
+        this.width[size] = (float) width;
+        this.height[size] = (float) height;
+        if (latin1 != null && !isLatin1(text)) {
+            inflate();
+        }
+        if (latin1 != null) {
+            for (int i = 0; i < text.length(); i++) {
+                latin1[length + i] = (byte) text.charAt(i);
+            }
+        } else {
+            text.getChars(0, text.length(), chars, length);
+        }
+        length += text.length();
+        textEnd[size] = length;
+        size++;
+    }
+
+    /**
+     * Release the spare capacity, once every line was added.
+     */
+    public void trimToSize() {
+        left = Arrays.copyOf(left, size);
+        top = Arrays.copyOf(top, size);
+        width = Arrays.copyOf(width, size);
+        height = Arrays.copyOf(height, size);
+        textEnd = Arrays.copyOf(textEnd, size);
+        if (latin1 != null) {
+            latin1 = Arrays.copyOf(latin1, length);
+        } else {
+            chars = Arrays.copyOf(chars, length);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public float getLeft(int line) {
+        checkIndex(line);
+        return left[line];
+    }
+
+    public float getTop(int line) {
+        checkIndex(line);
+        return top[line];
+    }
+
+    public float getWidth(int line) {
+        checkIndex(line);
+        return width[line];
+    }
+
+    public float getHeight(int line) {
+        checkIndex(line);
+        return height[line];
+    }
+
+    /**
+     * @return offset of the first char of the text of the line, see {@link #codePointAt(int, int)}
+     */
+    public int getTextStart(int line) {
+        checkIndex(line);
+        return line == 0 ? 0 : textEnd[line - 1];
+    }
+
+    /**
+     * @return offset past the last char of the text of the line
+     */
+    public int getTextEnd(int line) {
+        checkIndex(line);
+        return textEnd[line];
+    }
+
+    /**
+     * @return the text of the line, as a new String
+     */
+    public String getText(int line) {
+        int start = getTextStart(line);
+        if (latin1 != null) {
+            return new String(latin1, start, textEnd[line] - start, StandardCharsets.ISO_8859_1);
+        }
+        return new String(chars, start, textEnd[line] - start);
+    }
+
+    /**
+     * @return the code point at the offset, like {@link Character#codePointAt(char[], int, int)}: a surrogate pair
+     * before limit makes a single code point
+     */
+    int codePointAt(int offset, int limit) {
+        if (latin1 != null) {
+            return latin1[offset] & 0xff;
+        }
+        return Character.codePointAt(chars, offset, limit);
+    }
+
+    /**
+     * @return the line as a new TextLine
+     */
+    public TextLine get(int line) {
+        return new TextLine(getLeft(line), getTop(line), getWidth(line), getHeight(line), getText(line));
+    }
+
+    private void checkIndex(int line) {
+        if (line < 0 || line >= size) {
+            throw new IndexOutOfBoundsException("Line " + line + " of " + size);
+        }
+    }
+
+    private void ensureLineCapacity(int capacity) {
+        if (capacity > left.length) {
+            int newCapacity = Math.max(capacity, Math.max(8, left.length + (left.length >> 1)));
+            left = Arrays.copyOf(left, newCapacity);
+            top = Arrays.copyOf(top, newCapacity);
+            width = Arrays.copyOf(width, newCapacity);
+            height = Arrays.copyOf(height, newCapacity);
+            textEnd = Arrays.copyOf(textEnd, newCapacity);
+        }
+    }
+
+    private void ensureCharCapacity(int capacity) {
+        int current = latin1 != null ? latin1.length : chars.length;
+        if (capacity > current) {
+            int newCapacity = Math.max(capacity, Math.max(64, current + (current >> 1)));
+            if (latin1 != null) {
+                latin1 = Arrays.copyOf(latin1, newCapacity);
+            } else {
+                chars = Arrays.copyOf(chars, newCapacity);
+            }
+        }
+    }
+
+    private void inflate() {
+        chars = new char[latin1.length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) (latin1[i] & 0xff);
+        }
+        latin1 = null;
+    }
+
+    private static boolean isLatin1(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) > 0xff) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,76 @@
+package com.amazon.textract.pdf;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Tells born-digital pages, which already carry an extractable text layer, from image-only (scanned) pages.
+ *
+ * A page has a text layer when at least minCharacters non-whitespace characters can be extracted from it. The
+ * threshold keeps scans with a small printed stamp (e.g. a page number) on the OCR path.
+ */
+public class TextLayerDetector {
+
+    private final int minCharacters;
+
+    /**
+     * @param minCharacters non-whitespace characters a page needs to count as born-digital; 0 to treat every page as
+     *                      image-only
+     */
+    public TextLayerDetector(int minCharacters) {
+        this.minCharacters = minCharacters;
+    }
+
+    /**
+     * Detector with the threshold from the envar TEXT_LAYER_MIN_CHARS (default: 32); set it to 0 to always OCR.
+     */
+    public static TextLayerDetector fromEnvironment() {
+        return new TextLayerDetector(Optional.ofNullable(System.getenv("TEXT_LAYER_MIN_CHARS"))
+                .map(Integer::parseInt).orElse(32));
+    }
+
+    /**
+     * @return false if every page is treated as image-only, without looking at it
+     */
+    public boolean isEnabled() {
+        return minCharacters > 0;
+    }
+
+    /**
+     * @return for each page of the document, whether it has a text layer
+     */
+    public boolean[] detect(PDDocument document) throws IOException {
+        return detect(document, 0, document.getNumberOfPages());
+    }
+
+    /**
+     * @return for each page of the document, whether it has a text layer; only the pages from firstPage (included) to
+     * endPage (excluded) are looked at, the others are left false
+     */
+    public boolean[] detect(PDDocument document, int firstPage, int endPage) throws IOException {
+        boolean[] hasTextLayer = new boolean[document.getNumberOfPages()];
+        if (minCharacters <= 0) {
+            return hasTextLayer;
+        }
+
+        PDFTextStripper stripper = new PDFTextStripper();
+        for (int page = firstPage; page < endPage; ++page) {
+            stripper.setStartPage(page + 1);
+            stripper.setEndPage(page + 1);
+            hasTextLayer[page] = countNonWhitespace(stripper.getText(document)) >= minCharacters;
+        }
+        return hasTextLayer;
+    }
+
+    private static int countNonWhitespace(String text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
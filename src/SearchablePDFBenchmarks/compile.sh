@@ -0,0 +1 @@
+(cd ../SearchablePDF && mvn clean install) && mvn clean package
@@ -0,0 +1,2 @@
+# e.g. ./run.sh FontFitting -prof gc
+java -Ddocuments.dir=../SearchablePDF/documents -jar target/benchmarks.jar $@
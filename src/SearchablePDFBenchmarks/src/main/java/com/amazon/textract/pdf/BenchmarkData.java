@@ -0,0 +1,64 @@
+package com.amazon.textract.pdf;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Inputs shared by the benchmarks: the sample documents of the main module and synthetic OCR lines.
+ */
+class BenchmarkData {
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,;:-()";
+
+    /**
+     * Directory of SampleInput.pdf and SampleInput.png; set it with -Ddocuments.dir
+     */
+    static File documentsDir() {
+        return new File(System.getProperty("documents.dir", "../SearchablePDF/documents"));
+    }
+
+    /**
+     * The sample image as RGB, like a rendered pdf page
+     */
+    static BufferedImage sampleImage() throws IOException {
+        BufferedImage image = ImageIO.read(new File(documentsDir(), "SampleInput.png"));
+        BufferedImage rgbImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgbImage.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return rgbImage;
+    }
+
+    static byte[] samplePdf() throws IOException {
+        return Files.readAllBytes(new File(documentsDir(), "SampleInput.pdf").toPath());
+    }
+
+    /**
+     * Lines laid out top to bottom, as Textract returns them for a page of text.
+     */
+    static List<TextLine> syntheticLines(int count, int length, long seed) {
+        Random random = new Random(seed);
+        List<TextLine> lines = new ArrayList<TextLine>(count);
+        double lineHeight = 0.9 / count;
+        for (int i = 0; i < count; i++) {
+            double width = 0.3 + 0.6 * random.nextDouble();
+            lines.add(new TextLine(0.05, 0.05 + i * lineHeight, width, lineHeight * 0.8, syntheticText(random, length)));
+        }
+        return lines;
+    }
+
+    static String syntheticText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,80 @@
+package com.amazon.textract.pdf;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fitting the font size of a line to the width of its bounding box: in closed form as PDFDocument does, or stepping
+ * one point at a time (see {@link LegacyFontFitting}).
+ *
+ * Each trial first checks that both give the same {@link FontInfo} for the synthetic lines of a page, and fails if not.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FontFittingBenchmark {
+
+    //Width and height of a letter page, in points
+    private static final float PAGE_WIDTH = 612;
+    private static final float PAGE_HEIGHT = 792;
+
+    @Param({"10", "40", "120"})
+    public int lineLength;
+
+    @Param({"closedForm", "legacy"})
+    public String fitter;
+
+    private final PDFDocument document = new PDFDocument();
+
+    private String text;
+    private float narrowBoxWidth;
+    private float wideBoxWidth;
+
+    @Setup(Level.Trial)
+    public void createLine() throws IOException {
+        text = BenchmarkData.syntheticText(new Random(42), lineLength);
+        float widthAt17pt = document.font.getStringWidth(text) / 1000 * 17;
+        narrowBoxWidth = widthAt17pt / 3;
+        wideBoxWidth = widthAt17pt * 3;
+    }
+
+    @Setup(Level.Trial)
+    public void checkSameFontInfo() throws IOException {
+        for (TextLine line : BenchmarkData.syntheticLines(1000, lineLength, 42)) {
+            float bbWidth = (float) line.width * PAGE_WIDTH;
+            float bbHeight = (float) line.height * PAGE_HEIGHT;
+            for (float width : new float[] { bbWidth, bbWidth / 4, bbWidth * 4 }) {
+                FontInfo closedForm = document.calculateFontSize(line.text, width, bbHeight);
+                FontInfo legacy = LegacyFontFitting.calculateFontSize(document.font, line.text, width, bbHeight);
+                if (closedForm.fontSize != legacy.fontSize
+                        || Float.compare(closedForm.textWidth, legacy.textWidth) != 0
+                        || Float.compare(closedForm.textHeight, legacy.textHeight) != 0) {
+                    throw new IllegalStateException("Font fitting differs from legacy for \"" + line.text + "\" in "
+                            + width + "pt: " + closedForm.fontSize + "pt vs " + legacy.fontSize + "pt");
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public FontInfo shrink() throws IOException {
+        return fit(narrowBoxWidth);
+    }
+
+    @Benchmark
+    public FontInfo grow() throws IOException {
+        return fit(wideBoxWidth);
+    }
+
+    private FontInfo fit(float bbWidth) throws IOException {
+        if (fitter.equals("closedForm")) {
+            return document.calculateFontSize(text, bbWidth, 20);
+        }
+        return LegacyFontFitting.calculateFontSize(document.font, text, bbWidth, 20);
+    }
+}
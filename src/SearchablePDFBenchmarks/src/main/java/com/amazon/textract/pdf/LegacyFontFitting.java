@@ -0,0 +1,42 @@
+package com.amazon.textract.pdf;
+
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import java.io.IOException;
+
+/**
+ * The font size fitting as PDFDocument did it before the closed form, kept as the baseline of
+ * {@link FontFittingBenchmark}: stepping one point at a time from 17pt, measuring the whole text again at each step.
+ *
+ * Loops forever on empty text; callers must not pass any.
+ */
+class LegacyFontFitting {
+
+    static FontInfo calculateFontSize(PDFont font, String text, float bbWidth, float bbHeight) throws IOException {
+
+        int fontSize = 17;
+        float textWidth = font.getStringWidth(text) / 1000 * fontSize;
+        float textHeight = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+
+        if(textWidth > bbWidth){
+            while(textWidth > bbWidth){
+                fontSize -= 1;
+                textWidth = font.getStringWidth(text) / 1000 * fontSize;
+                textHeight = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+            }
+        }
+        else if(textWidth < bbWidth){
+            while(textWidth < bbWidth){
+                fontSize += 1;
+                textWidth = font.getStringWidth(text) / 1000 * fontSize;
+                textHeight = font.getFontDescriptor().getFontBoundingBox().getHeight() / 1000 * fontSize;
+            }
+        }
+
+        FontInfo fi = new FontInfo();
+        fi.fontSize = fontSize;
+        fi.textHeight = textHeight;
+        fi.textWidth = textWidth;
+
+        return fi;
+    }
+}
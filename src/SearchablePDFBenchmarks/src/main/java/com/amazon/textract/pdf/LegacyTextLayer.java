@@ -0,0 +1,38 @@
+package com.amazon.textract.pdf;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.graphics.state.RenderingMode;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The text layer as PDFDocument wrote it before the compact writer, kept as the baseline of {@link TextLayerBenchmark}:
+ * one text object per line, the font set again for every line, and an uncompressed content stream.
+ */
+class LegacyTextLayer {
+
+    static void addText(PDFDocument sizer, PDDocument document, int pageIndex, List<TextLine> lines) throws IOException {
+        PDPage page = document.getPage(pageIndex);
+
+        float height = page.getMediaBox().getHeight();
+
+        float width = page.getMediaBox().getWidth();
+
+        PDPageContentStream contentStream = new PDPageContentStream(document, page, PDPageContentStream.AppendMode.APPEND, false );
+        contentStream.setRenderingMode(RenderingMode.NEITHER);
+
+        for (TextLine cline : lines){
+            FontInfo fontInfo = sizer.calculateFontSize(cline.text, (float)cline.width*width, (float)cline.height*height);
+
+            contentStream.beginText();
+            contentStream.setFont(sizer.font, fontInfo.fontSize);
+            contentStream.newLineAtOffset((float)cline.left*width, (float)(height-height*cline.top-fontInfo.textHeight));
+            contentStream.showText(cline.text);
+            contentStream.endText();
+        }
+
+        contentStream.close();
+    }
+}
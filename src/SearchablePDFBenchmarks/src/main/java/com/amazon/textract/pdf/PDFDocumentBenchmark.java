@@ -0,0 +1,65 @@
+package com.amazon.textract.pdf;
+
+import org.apache.pdfbox.tools.imageio.ImageIOUtil;
+import org.openjdk.jmh.annotations.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assembly of a searchable pdf page from a page image plus its text layer: from the image, or from the image already
+ * encoded (as sent to OCR).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PDFDocumentBenchmark {
+
+    @Param({"JPEG", "PNG"})
+    public ImageType imageType;
+
+    @Param({"40", "150"})
+    public int linesPerPage;
+
+    private BufferedImage image;
+    private byte[] encodedImage;
+    private List<TextLine> lines;
+
+    private PDFDocument document;
+
+    @Setup(Level.Trial)
+    public void loadInputs() throws IOException {
+        image = BenchmarkData.sampleImage();
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ImageIOUtil.writeImage(image, imageType == ImageType.JPEG ? "jpeg" : "png", byteArrayOutputStream);
+        encodedImage = byteArrayOutputStream.toByteArray();
+        lines = BenchmarkData.syntheticLines(linesPerPage, 60, 42);
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeDocument() throws IOException {
+        if (document != null) {
+            document.close();
+            document = null;
+        }
+    }
+
+    @Benchmark
+    public PDFDocument addPage() throws IOException {
+        document = new PDFDocument();
+        document.addPage(image, imageType, lines);
+        return document;
+    }
+
+    @Benchmark
+    public PDFDocument addEncodedPage() throws IOException {
+        document = new PDFDocument();
+        document.addPage(encodedImage, imageType, lines);
+        return document;
+    }
+}
@@ -0,0 +1,81 @@
+package com.amazon.textract.pdf;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory held by the OCR lines of a whole document: a list of {@link TextLine} per page ("objects"), or a
+ * {@link PageLines} per page ("columnar").
+ *
+ * The heap retained per page is printed at the end of each trial; run with -prof gc for the bytes allocated to build
+ * them (gc.alloc.rate.norm, per document).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PageLinesBenchmark {
+
+    @Param({"40", "150"})
+    public int linesPerPage;
+
+    @Param({"columnar", "objects"})
+    public String representation;
+
+    @Param({"500"})
+    public int pages;
+
+    private List<TextLine> sourceLines;
+
+    @Setup(Level.Trial)
+    public void loadInputs() {
+        sourceLines = BenchmarkData.syntheticLines(linesPerPage, 60, 42);
+    }
+
+    @TearDown(Level.Trial)
+    public void printRetainedHeap() {
+        List<Object> document = buildDocument();
+        long held = usedHeapAfterGc();
+        document = null;
+        long released = usedHeapAfterGc();
+        System.out.println();
+        System.out.println(representation + " lines of " + pages + " pages of " + linesPerPage + " lines: "
+                + (held - released) / pages + " bytes retained per page");
+    }
+
+    @Benchmark
+    public List<Object> buildDocument() {
+        List<Object> document = new ArrayList<Object>(pages);
+        for (int page = 0; page < pages; page++) {
+            if (representation.equals("columnar")) {
+                PageLines lines = new PageLines();
+                for (TextLine line : sourceLines) {
+                    lines.add(line.left, line.top, line.width, line.height, line.text);
+                }
+                lines.trimToSize();
+                document.add(lines);
+            } else {
+                //A String of its own per line, like the text of each Textract block
+                List<TextLine> lines = new ArrayList<TextLine>();
+                for (TextLine line : sourceLines) {
+                    String text = new String(line.text.toCharArray());
+                    lines.add(new TextLine(line.left, line.top, line.width, line.height, text));
+                }
+                document.add(lines);
+            }
+        }
+        return document;
+    }
+
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
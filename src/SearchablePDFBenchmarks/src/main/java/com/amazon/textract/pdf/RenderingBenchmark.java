@@ -0,0 +1,53 @@
+package com.amazon.textract.pdf;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.tools.imageio.ImageIOUtil;
+import org.openjdk.jmh.annotations.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering a pdf page to an image, and encoding that image to JPEG, as done before sending a page to OCR.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RenderingBenchmark {
+
+    @Param({"72", "150", "300"})
+    public int dpi;
+
+    private PDDocument inputDocument;
+    private PDFRenderer pdfRenderer;
+    private BufferedImage image;
+
+    @Setup(Level.Trial)
+    public void renderOnce() throws IOException {
+        inputDocument = PDDocument.load(BenchmarkData.samplePdf());
+        pdfRenderer = new PDFRenderer(inputDocument);
+        image = pdfRenderer.renderImageWithDPI(0, dpi, org.apache.pdfbox.rendering.ImageType.RGB);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeDocument() throws IOException {
+        inputDocument.close();
+    }
+
+    @Benchmark
+    public BufferedImage render() throws IOException {
+        return pdfRenderer.renderImageWithDPI(0, dpi, org.apache.pdfbox.rendering.ImageType.RGB);
+    }
+
+    @Benchmark
+    public int encodeJpeg() throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        ImageIOUtil.writeImage(image, "jpeg", byteArrayOutputStream, dpi, 0.75f);
+        return byteArrayOutputStream.size();
+    }
+}
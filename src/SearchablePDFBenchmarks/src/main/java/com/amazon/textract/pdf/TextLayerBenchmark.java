@@ -0,0 +1,67 @@
+package com.amazon.textract.pdf;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.openjdk.jmh.annotations.*;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding the (invisible) text layer over a page of an existing pdf and saving it, as done when making a scanned pdf
+ * searchable: with the compact writer of PDFDocument, or with the legacy one (see {@link LegacyTextLayer}).
+ *
+ * The size of the text layer written per page is printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TextLayerBenchmark {
+
+    @Param({"40", "150"})
+    public int linesPerPage;
+
+    @Param({"compact", "legacy"})
+    public String writer;
+
+    private byte[] pdf;
+    private List<TextLine> lines;
+
+    private final PDFDocument sizer = new PDFDocument();
+    private int outputBytes;
+
+    @Setup(Level.Trial)
+    public void loadInputs() throws IOException {
+        pdf = BenchmarkData.samplePdf();
+        lines = BenchmarkData.syntheticLines(linesPerPage, 60, 42);
+    }
+
+    @TearDown(Level.Trial)
+    public void printTextLayerSize() throws IOException {
+        sizer.close();
+        System.out.println();
+        System.out.println(writer + " text layer of " + linesPerPage + " lines: " + (outputBytes - pdf.length) + " bytes");
+    }
+
+    @Benchmark
+    public int addTextAndSave() throws IOException {
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(pdf.length * 2);
+        if (writer.equals("compact")) {
+            PDFDocument document = new PDFDocument(new ByteArrayInputStream(pdf));
+            document.addText(0, lines);
+            document.save(byteArrayOutputStream);
+            document.close();
+        } else {
+            PDDocument document = PDDocument.load(new ByteArrayInputStream(pdf), PDFDocument.defaultMemoryUsageSetting());
+            LegacyTextLayer.addText(sizer, document, 0, lines);
+            document.save(byteArrayOutputStream);
+            document.close();
+        }
+        outputBytes = byteArrayOutputStream.size();
+        return outputBytes;
+    }
+}